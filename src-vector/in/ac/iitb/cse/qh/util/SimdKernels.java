@@ -0,0 +1,139 @@
+package in.ac.iitb.cse.qh.util;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link VectorKernels} on the incubating Java Vector API, in the preferred
+ * vector width of the CPU. Needs Java 16 or later with
+ * --add-modules jdk.incubator.vector at compile and run time, so it lives in
+ * its own source root, src-vector, compiled against the classes of src:
+ *
+ * <pre>
+ * javac --add-modules jdk.incubator.vector -cp classes -d classes \
+ *     src-vector/in/ac/iitb/cse/qh/util/SimdKernels.java
+ * </pre>
+ *
+ * VectorKernels only loads it by name, so src builds and runs without it.
+ */
+public class SimdKernels implements VectorKernels.Kernels {
+	private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+	/** Floats that widen to one vector of SPECIES */
+	private static final VectorSpecies<Float> FLOATS = VectorSpecies.of(
+			float.class, VectorShape.forBitSize(SPECIES.vectorBitSize() / 2));
+
+	/**
+	 * Whether the CPU has vectors of at least two doubles
+	 */
+	public static boolean isSupported() {
+		return SPECIES.length() >= 2;
+	}
+
+	@Override
+	public double dot(double[] a, int aOffset, double[] b, int bOffset, int n) {
+		int step = SPECIES.length();
+		int bound = SPECIES.loopBound(n);
+		DoubleVector acc = DoubleVector.zero(SPECIES);
+		int j = 0;
+		for (; j < bound; j += step)
+			acc = DoubleVector.fromArray(SPECIES, a, aOffset + j)
+					.mul(DoubleVector.fromArray(SPECIES, b, bOffset + j))
+					.add(acc);
+		double sum = acc.reduceLanes(VectorOperators.ADD);
+		for (; j < n; j++)
+			sum += a[aOffset + j] * b[bOffset + j];
+		return sum;
+	}
+
+	@Override
+	public double dot(float[] a, int aOffset, double[] b, int bOffset, int n) {
+		int step = SPECIES.length();
+		int bound = SPECIES.loopBound(n);
+		DoubleVector acc = DoubleVector.zero(SPECIES);
+		int j = 0;
+		for (; j < bound; j += step)
+			acc = widen(a, aOffset + j)
+					.mul(DoubleVector.fromArray(SPECIES, b, bOffset + j))
+					.add(acc);
+		double sum = acc.reduceLanes(VectorOperators.ADD);
+		for (; j < n; j++)
+			sum += a[aOffset + j] * b[bOffset + j];
+		return sum;
+	}
+
+	/**
+	 * A plain loop: C2 already vectorises it, and does so better than the
+	 * Vector API
+	 */
+	@Override
+	public void axpy(double alpha, double[] x, int xOffset, double[] y,
+			int yOffset, int n) {
+		for (int j = 0; j < n; j++)
+			y[yOffset + j] += alpha * x[xOffset + j];
+	}
+
+	@Override
+	public void axpy(double alpha, float[] x, int xOffset, double[] y,
+			int yOffset, int n) {
+		int step = SPECIES.length();
+		int bound = SPECIES.loopBound(n);
+		DoubleVector va = DoubleVector.broadcast(SPECIES, alpha);
+		int j = 0;
+		for (; j < bound; j += step)
+			widen(x, xOffset + j).mul(va)
+					.add(DoubleVector.fromArray(SPECIES, y, yOffset + j))
+					.intoArray(y, yOffset + j);
+		for (; j < n; j++)
+			y[yOffset + j] += alpha * x[xOffset + j];
+	}
+
+	/**
+	 * SPECIES.length() floats from a[offset], widened to double
+	 */
+	private static DoubleVector widen(float[] a, int offset) {
+		return (DoubleVector) FloatVector.fromArray(FLOATS, a, offset)
+				.convertShape(VectorOperators.F2D, SPECIES, 0);
+	}
+
+	@Override
+	public void sigmoid(double[] z, double[] out, int n) {
+		int step = SPECIES.length();
+		int bound = SPECIES.loopBound(n);
+		DoubleVector one = DoubleVector.broadcast(SPECIES, 1d);
+		int i = 0;
+		for (; i < bound; i += step)
+			one.div(DoubleVector.fromArray(SPECIES, z, i).neg()
+					.lanewise(VectorOperators.EXP).add(one)).intoArray(out, i);
+		for (; i < n; i++)
+			out[i] = 1 / (1 + Math.exp(-z[i]));
+	}
+
+	@Override
+	public void softplus(double[] z, double[] out, int n) {
+		int step = SPECIES.length();
+		int bound = SPECIES.loopBound(n);
+		DoubleVector zero = DoubleVector.zero(SPECIES);
+		int i = 0;
+		for (; i < bound; i += step) {
+			DoubleVector v = DoubleVector.fromArray(SPECIES, z, i);
+			// max(v, 0) + log1p(exp(-|v|))
+			v.max(zero)
+					.add(v.abs().neg().lanewise(VectorOperators.EXP)
+							.lanewise(VectorOperators.LOG1P)).intoArray(out, i);
+		}
+		for (; i < n; i++) {
+			double v = z[i];
+			out[i] = v > 0 ? v + Math.log1p(Math.exp(-v)) : Math.log1p(Math
+					.exp(v));
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "Vector API kernels, " + SPECIES;
+	}
+}
@@ -0,0 +1,109 @@
+package in.ac.iitb.cse.qh.classifiers;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import weka.core.Attribute;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.converters.ArffLoader;
+
+/**
+ * Reads an ARFF file incrementally. The class is the last attribute unless
+ * the file says otherwise. Predictors must be numeric or nominal with two
+ * values; a two valued nominal is read as its value index, which is what
+ * NominalToBinary turns it into. Instances with a missing class are skipped.
+ * One loader reads every pass, from a stream this source opens and closes,
+ * so rewinding does not leave the reader of the last pass open.
+ */
+public class ArffBatchSource implements InstanceBatchSource {
+	private final File file;
+	private final ArffLoader loader = new ArffLoader();
+	private InputStream in;
+	private Instances structure;
+
+	public ArffBatchSource(File file) throws IOException {
+		this.file = file;
+		open();
+		for (int k = 0; k < structure.numAttributes(); k++) {
+			if (k == structure.classIndex())
+				continue;
+			Attribute a = structure.attribute(k);
+			if (!a.isNumeric() && !(a.isNominal() && a.numValues() <= 2)) {
+				in.close();
+				throw new IllegalArgumentException("Attribute " + a.name()
+						+ " is neither numeric nor binary nominal");
+			}
+		}
+	}
+
+	private void open() throws IOException {
+		in = new BufferedInputStream(new FileInputStream(file), 1 << 16);
+		// Drops the parser of the last pass, which read the closed stream
+		loader.reset();
+		loader.setSource(in);
+		structure = loader.getStructure();
+		if (structure.classIndex() < 0)
+			structure.setClassIndex(structure.numAttributes() - 1);
+	}
+
+	@Override
+	public int numPredictors() {
+		return structure.numAttributes() - 1;
+	}
+
+	@Override
+	public int numClasses() {
+		return structure.numClasses();
+	}
+
+	@Override
+	public int classIndex() {
+		return structure.classIndex();
+	}
+
+	@Override
+	public boolean isNominal(int predictor) {
+		int k = predictor < classIndex() ? predictor : predictor + 1;
+		return structure.attribute(k).isNominal();
+	}
+
+	@Override
+	public void reset() throws IOException {
+		in.close();
+		open();
+	}
+
+	@Override
+	public int read(double[] values, int[] classes, double[] weights, int max)
+			throws IOException {
+		int nR = numPredictors();
+		int classIndex = classIndex();
+		int n = 0;
+		while (n < max) {
+			Instance current = loader.getNextInstance(structure);
+			if (null == current)
+				break;
+			if (current.classIsMissing())
+				continue;
+			classes[n] = (int) current.classValue();
+			weights[n] = current.weight();
+			int j = n * nR;
+			for (int k = 0; k <= nR; k++) {
+				if (k != classIndex)
+					values[j++] = current.isMissing(k) ? Double.NaN : current
+							.value(k);
+			}
+			n++;
+		}
+		return n;
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+}
@@ -0,0 +1,134 @@
+package in.ac.iitb.cse.qh.classifiers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Reads instances from a compact binary file, which is much cheaper to parse
+ * than ARFF when the same data is passed over many times. The file starts
+ * with a header of four ints: {@link #MAGIC}, the number of predictors, the
+ * number of classes and the class index, followed by one boolean per
+ * predictor telling whether it is nominal. Every instance follows as an int
+ * class, a double weight and the predictor values as doubles, NaN for
+ * missing. {@link #write} converts any other source to this format.
+ */
+public class BinaryBatchSource implements InstanceBatchSource {
+	public static final int MAGIC = 0x4d4c4232; // "MLB2"
+
+	private final File file;
+	private DataInputStream in;
+	private int numPredictors;
+	private int numClasses;
+	private int classIndex;
+	private boolean[] nominal;
+
+	public BinaryBatchSource(File file) throws IOException {
+		this.file = file;
+		open();
+	}
+
+	private void open() throws IOException {
+		in = new DataInputStream(new BufferedInputStream(new FileInputStream(
+				file), 1 << 16));
+		if (in.readInt() != MAGIC) {
+			in.close();
+			throw new IOException(file + " is not a binary instance file");
+		}
+		numPredictors = in.readInt();
+		numClasses = in.readInt();
+		classIndex = in.readInt();
+		nominal = new boolean[numPredictors];
+		for (int j = 0; j < numPredictors; j++)
+			nominal[j] = in.readBoolean();
+	}
+
+	@Override
+	public int numPredictors() {
+		return numPredictors;
+	}
+
+	@Override
+	public int numClasses() {
+		return numClasses;
+	}
+
+	@Override
+	public int classIndex() {
+		return classIndex;
+	}
+
+	@Override
+	public boolean isNominal(int predictor) {
+		return nominal[predictor];
+	}
+
+	@Override
+	public void reset() throws IOException {
+		in.close();
+		open();
+	}
+
+	@Override
+	public int read(double[] values, int[] classes, double[] weights, int max)
+			throws IOException {
+		int n = 0;
+		while (n < max) {
+			try {
+				classes[n] = in.readInt();
+			} catch (EOFException e) {
+				break;
+			}
+			weights[n] = in.readDouble();
+			for (int j = n * numPredictors, end = j + numPredictors; j < end; j++)
+				values[j] = in.readDouble();
+			n++;
+		}
+		return n;
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	/**
+	 * Writes all instances of source to file in the binary format, one batch
+	 * at a time
+	 */
+	public static void write(InstanceBatchSource source, File file,
+			int batchSize) throws IOException {
+		int nR = source.numPredictors();
+		double[] values = new double[batchSize * nR];
+		int[] classes = new int[batchSize];
+		double[] weights = new double[batchSize];
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(file), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(nR);
+			out.writeInt(source.numClasses());
+			out.writeInt(source.classIndex());
+			for (int j = 0; j < nR; j++)
+				out.writeBoolean(source.isNominal(j));
+			source.reset();
+			int n;
+			while ((n = source.read(values, classes, weights, batchSize)) > 0) {
+				for (int i = 0; i < n; i++) {
+					out.writeInt(classes[i]);
+					out.writeDouble(weights[i]);
+					for (int j = i * nR; j < (i + 1) * nR; j++)
+						out.writeDouble(values[j]);
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -2,10 +2,7 @@ package in.ac.iitb.cse.qh.classifiers;
 
 import in.ac.iitb.cse.qh.util.WekaUtil;
 
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.ObjectInputStream;
+import java.io.File;
 
 import weka.core.Instance;
 import weka.core.Instances;
@@ -28,10 +25,7 @@ public class ClassifyDataFromModel {
 		this.modelFile = modelFile;
 		this.testFile = testFile;
 
-		ObjectInputStream ois = new ObjectInputStream(new FileInputStream(
-				modelFile));
-		modLog = (ModifiedLogistic) ois.readObject();
-		ois.close();
+		modLog = ModifiedLogistic.loadModel(new File(modelFile));
 		
 		params=modLog.getWparameters();
 		instances = WekaUtil.getInstances(testFile);
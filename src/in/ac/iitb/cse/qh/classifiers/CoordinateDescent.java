@@ -0,0 +1,340 @@
+package in.ac.iitb.cse.qh.classifiers;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Cyclic coordinate descent for the binary logistic loss with an L1 penalty
+ * next to the ridge penalty of {@link LogisticLoss}, minimising
+ *
+ * sum_i v_i nll_i(w) + sum_{r > 0} (d[r] w_r^2 + lambda |w_r|),
+ *
+ * which is the lasso for d = 0 and the elastic net otherwise. Every outer
+ * iteration replaces the likelihood by its quadratic approximation at the
+ * current weights and minimises that one coordinate at a time by soft
+ * thresholding, as glmnet does (Friedman, Hastie and Tibshirani,
+ * "Regularization paths for generalized linear models via coordinate
+ * descent", JSS 2010). The inner cycles only visit the active set, the
+ * weights that are not zero; a full pass over all columns then checks the
+ * optimality of the others and adds those that violate it. The intercept is
+ * not penalised.
+ *
+ * The data is read column by column, from {@link Columns}.
+ */
+class CoordinateDescent {
+	private static final Logger LOGGER = Logger
+			.getLogger(CoordinateDescent.class.getName());
+
+	/** Lower bound of the curvature p(1 - p) of a row */
+	private static final double MIN_CURVATURE = 1e-5;
+
+	/** Inner cycles allowed per outer iteration */
+	private static final int MAX_CYCLES = 1000;
+
+	/**
+	 * Columns 1 .. dim - 1 of a standardised FeatureMatrix in compressed
+	 * sparse column form, so that a coordinate update touches only the rows
+	 * where its column is not zero. Building it costs a pass over the data
+	 * and a second copy of its non-zero values, so it is kept with the
+	 * {@link PreprocessedData} and shared by the fits to the same data.
+	 */
+	static final class Columns {
+		/** Column j occupies [colStart[j], colStart[j + 1]) of rows and values */
+		final int[] colStart;
+		final int[] rows;
+		final double[] values;
+		final int numRows;
+
+		Columns(FeatureMatrix data) {
+			numRows = data.numRows();
+			int dim = data.numColumns();
+			colStart = new int[dim + 1];
+			if (data instanceof SparseDesignMatrix) {
+				SparseDesignMatrix sparse = (SparseDesignMatrix) data;
+				int[] columns = sparse.getColumns();
+				double[] stored = sparse.getValues();
+				double[] scale = sparse.getColumnScale();
+				for (int i = 0; i < numRows; i++)
+					for (int p = sparse.rowStart(i); p < sparse.rowEnd(i); p++)
+						colStart[columns[p] + 1]++;
+				for (int j = 0; j < dim; j++)
+					colStart[j + 1] += colStart[j];
+				rows = new int[colStart[dim]];
+				values = new double[colStart[dim]];
+				int[] next = colStart.clone();
+				for (int i = 0; i < numRows; i++)
+					for (int p = sparse.rowStart(i); p < sparse.rowEnd(i); p++) {
+						int j = columns[p];
+						rows[next[j]] = i;
+						values[next[j]++] = stored[p] * scale[j];
+					}
+			} else {
+				for (int i = 0; i < numRows; i++)
+					for (int j = 1; j < dim; j++)
+						if (data.get(i, j) != 0d)
+							colStart[j + 1]++;
+				for (int j = 0; j < dim; j++)
+					colStart[j + 1] += colStart[j];
+				rows = new int[colStart[dim]];
+				values = new double[colStart[dim]];
+				int[] next = colStart.clone();
+				for (int i = 0; i < numRows; i++)
+					for (int j = 1; j < dim; j++) {
+						double value = data.get(i, j);
+						if (value != 0d) {
+							rows[next[j]] = i;
+							values[next[j]++] = value;
+						}
+					}
+			}
+		}
+
+		int numColumns() {
+			return colStart.length - 1;
+		}
+	}
+
+	private final int[] colStart;
+	private final int[] rows;
+	private final double[] values;
+
+	private final int numRows;
+	private final int dim;
+	private final boolean[] first;
+	private final double[] weights;
+	private final double[] ridge;
+	private final double lambda;
+
+	/** Stop when the objective changes by less than eps relative to it */
+	private double eps = 1e-7;
+
+	private int maxIterations = 100;
+
+	private int numIterations;
+	private int numCycles;
+	private double minFunction;
+
+	/**
+	 * @param data
+	 *            the columns of the standardised training data
+	 * @param cls
+	 *            class of every row, 0 or 1; class 0 has probability
+	 *            sigmoid(x.w)
+	 * @param ridge
+	 *            ridge hyperparameter of every column
+	 * @param lambda
+	 *            the L1 penalty of every column but the intercept
+	 */
+	CoordinateDescent(Columns data, int[] cls, double[] weights,
+			double[] ridge, double lambda) {
+		numRows = data.numRows;
+		dim = data.numColumns();
+		colStart = data.colStart;
+		rows = data.rows;
+		values = data.values;
+		this.weights = weights;
+		this.ridge = ridge;
+		this.lambda = lambda;
+		first = new boolean[numRows];
+		for (int i = 0; i < numRows; i++)
+			first[i] = cls[i] == 0;
+	}
+
+	void setEpsilon(double eps) {
+		this.eps = eps;
+	}
+
+	void setMaxIterations(int maxIterations) {
+		this.maxIterations = maxIterations;
+	}
+
+	int getNumIterations() {
+		return numIterations;
+	}
+
+	/** Passes over the active set, over all outer iterations */
+	int getNumCycles() {
+		return numCycles;
+	}
+
+	double getMinFunction() {
+		return minFunction;
+	}
+
+	/**
+	 * Minimises the objective starting from w, which is overwritten with the
+	 * solution
+	 */
+	void minimize(double[] w) {
+		double[] z = new double[numRows];
+		margins(w, z);
+		double f = objective(w, z);
+		double[] curvature = new double[numRows];
+		double[] residual = new double[numRows];
+		double[] hess = new double[dim];
+		boolean[] active = new boolean[dim];
+
+		numIterations = 0;
+		numCycles = 0;
+		while (numIterations < maxIterations) {
+			numIterations++;
+			double[] w0 = w.clone();
+			double[] z0 = z.clone();
+			for (int j = 1; j < dim; j++)
+				active[j] = w[j] != 0d;
+
+			// Quadratic approximation of the likelihood at w0: the working
+			// residual is the negative gradient of the approximation with
+			// respect to the margins at the current point of the inner loop
+			for (int i = 0; i < numRows; i++) {
+				double p = sigmoid(z[i]);
+				curvature[i] = weights[i]
+						* Math.max(p * (1 - p), MIN_CURVATURE);
+				residual[i] = weights[i] * ((first[i] ? 1 : 0) - p);
+			}
+			double hess0 = 0d;
+			for (int i = 0; i < numRows; i++)
+				hess0 += curvature[i];
+			for (int j = 1; j < dim; j++) {
+				double h = 0d;
+				for (int p = colStart[j]; p < colStart[j + 1]; p++)
+					h += curvature[rows[p]] * values[p] * values[p];
+				hess[j] = h;
+			}
+
+			for (int cycle = 0; cycle < MAX_CYCLES; cycle++) {
+				double change = cycle(w, z, curvature, residual, hess, hess0,
+						active, false);
+				numCycles++;
+				if (change > eps)
+					continue;
+				// Converged on the active set; a full pass adds the columns
+				// that violate their optimality condition
+				change = cycle(w, z, curvature, residual, hess, hess0, active,
+						true);
+				numCycles++;
+				if (change <= eps)
+					break;
+			}
+
+			// Backtrack towards w0 if the quadratic step overshoots
+			double fNext = objective(w, z);
+			double[] w1 = w.clone();
+			for (double t = 0.5; !(fNext <= f) && t > 1e-6; t /= 2) {
+				for (int j = 0; j < dim; j++)
+					w[j] = w0[j] + t * (w1[j] - w0[j]);
+				margins(w, z);
+				fNext = objective(w, z);
+			}
+			if (!(fNext <= f)) {
+				System.arraycopy(w0, 0, w, 0, dim);
+				System.arraycopy(z0, 0, z, 0, numRows);
+				break;
+			}
+			boolean done = f - fNext <= eps * (1 + Math.abs(fNext));
+			f = fNext;
+			if (done)
+				break;
+		}
+		minFunction = f;
+		if (LOGGER.isLoggable(Level.FINE))
+			LOGGER.log(Level.FINE, "Coordinate descent: " + numIterations
+					+ " iterations, " + numCycles + " cycles, "
+					+ countNonZero(w) + " non-zero weights");
+	}
+
+	/**
+	 * One cycle over the intercept and the active columns, or all columns,
+	 * updating z and the residual as the weights change. Columns that become
+	 * zero leave the active set and columns that become non-zero join it.
+	 *
+	 * @return the largest change of the quadratic model caused by a single
+	 *         coordinate, relative to the total curvature of the rows
+	 */
+	private double cycle(double[] w, double[] z, double[] curvature,
+			double[] residual, double[] hess, double hess0, boolean[] active,
+			boolean all) {
+		double maxChange = 0d;
+		if (hess0 > 0) {
+			double g = 0d;
+			for (int i = 0; i < numRows; i++)
+				g += residual[i];
+			double delta = g / hess0;
+			if (delta != 0d) {
+				w[0] += delta;
+				for (int i = 0; i < numRows; i++) {
+					z[i] += delta;
+					residual[i] -= curvature[i] * delta;
+				}
+				maxChange = hess0 * delta * delta;
+			}
+		}
+		for (int j = 1; j < dim; j++) {
+			if (!all && !active[j])
+				continue;
+			double h = hess[j];
+			double denom = h + 2 * ridge[j];
+			if (denom <= 0)
+				continue;
+			double g = 0d;
+			for (int p = colStart[j]; p < colStart[j + 1]; p++)
+				g += values[p] * residual[rows[p]];
+			double u = h * w[j] + g;
+			double next = (u > lambda ? u - lambda : u < -lambda ? u + lambda
+					: 0d) / denom;
+			double delta = next - w[j];
+			active[j] = next != 0d;
+			if (delta == 0d)
+				continue;
+			w[j] = next;
+			for (int p = colStart[j]; p < colStart[j + 1]; p++) {
+				int i = rows[p];
+				z[i] += delta * values[p];
+				residual[i] -= curvature[i] * delta * values[p];
+			}
+			maxChange = Math.max(maxChange, h * delta * delta);
+		}
+		return maxChange / Math.max(hess0, Double.MIN_NORMAL);
+	}
+
+	private void margins(double[] w, double[] z) {
+		for (int i = 0; i < numRows; i++)
+			z[i] = w[0];
+		for (int j = 1; j < dim; j++) {
+			double wj = w[j];
+			if (wj == 0d)
+				continue;
+			for (int p = colStart[j]; p < colStart[j + 1]; p++)
+				z[rows[p]] += wj * values[p];
+		}
+	}
+
+	/**
+	 * The penalised negative log-likelihood at w, given its margins z
+	 */
+	private double objective(double[] w, double[] z) {
+		double f = 0d;
+		for (int i = 0; i < numRows; i++) {
+			double m = first[i] ? -z[i] : z[i];
+			f += weights[i]
+					* (m > 0 ? m + Math.log1p(Math.exp(-m)) : Math.log1p(Math
+							.exp(m)));
+		}
+		for (int j = 1; j < dim; j++)
+			f += ridge[j] * w[j] * w[j] + lambda * Math.abs(w[j]);
+		return f;
+	}
+
+	private static double sigmoid(double z) {
+		return z >= 0 ? 1 / (1 + Math.exp(-z)) : Math.exp(z)
+				/ (1 + Math.exp(z));
+	}
+
+	static int countNonZero(double[] w) {
+		int n = 0;
+		for (int j = 1; j < w.length; j++)
+			if (w[j] != 0d)
+				n++;
+		return n;
+	}
+}
@@ -0,0 +1,92 @@
+package in.ac.iitb.cse.qh.classifiers;
+
+import in.ac.iitb.cse.qh.util.VectorKernels;
+
+import java.io.Serializable;
+
+/**
+ * A dense design matrix stored row-major in a single array. Row r occupies
+ * [r * numColumns, (r + 1) * numColumns) of {@link #getValues()}.
+ */
+public class DesignMatrix implements FeatureMatrix, Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private final double[] values;
+	private final int numRows;
+	private final int numColumns;
+
+	public DesignMatrix(int numRows, int numColumns) {
+		if ((long) numRows * numColumns > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Design matrix of " + numRows
+					+ " x " + numColumns + " is too large");
+		this.numRows = numRows;
+		this.numColumns = numColumns;
+		values = new double[numRows * numColumns];
+	}
+
+	@Override
+	public int numRows() {
+		return numRows;
+	}
+
+	@Override
+	public int numColumns() {
+		return numColumns;
+	}
+
+	/**
+	 * The backing row-major array
+	 */
+	public double[] getValues() {
+		return values;
+	}
+
+	public int rowOffset(int row) {
+		return row * numColumns;
+	}
+
+	@Override
+	public double get(int row, int column) {
+		return values[row * numColumns + column];
+	}
+
+	public void set(int row, int column, double value) {
+		values[row * numColumns + column] = value;
+	}
+
+	/**
+	 * Stores a whole row
+	 */
+	public void setRow(int row, double[] r) {
+		System.arraycopy(r, 0, values, row * numColumns, numColumns);
+	}
+
+	@Override
+	public double dot(int row, double[] w, int wOffset) {
+		return VectorKernels.dot(values, row * numColumns, w, wOffset,
+				numColumns);
+	}
+
+	@Override
+	public void addRow(int row, double alpha, double[] dst, int dstOffset) {
+		VectorKernels.axpy(alpha, values, row * numColumns, dst, dstOffset,
+				numColumns);
+	}
+
+	@Override
+	public double[] getRow(int row) {
+		double[] r = new double[numColumns];
+		System.arraycopy(values, row * numColumns, r, 0, numColumns);
+		return r;
+	}
+
+	/**
+	 * A copy of a column
+	 */
+	public double[] getColumn(int column) {
+		double[] c = new double[numRows];
+		for (int i = 0, off = column; i < numRows; i++, off += numColumns)
+			c[i] = values[off];
+		return c;
+	}
+}
@@ -0,0 +1,218 @@
+package in.ac.iitb.cse.qh.classifiers;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+import weka.core.Attribute;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Maps the attributes of an instance into a fixed number of signed buckets
+ * (the hashing trick of Weinberger et al., "Feature hashing for large scale
+ * multitask learning", ICML 2009), so that the number of weights does not
+ * grow with the vocabulary of string and nominal attributes. Column 0 is the
+ * intercept and the buckets are columns 1 .. numBuckets.
+ *
+ * A numeric attribute hashes its name and adds its value. A nominal value
+ * hashes the attribute name and the value and adds 1, except for the first
+ * value, which is the reference level and adds nothing, as in sparse ARFF.
+ * A string value is split on whitespace and every token is hashed like a
+ * nominal value, so repeated tokens are counted. Missing values add
+ * nothing. The hash is 32 bit MurmurHash3; its lower 31 bits modulo
+ * numBuckets pick the bucket and the top bit the sign of the value, so that
+ * collisions cancel out on average instead of adding up. Any number of
+ * buckets works; a power of two keeps the modulo from favouring the low
+ * buckets, if only by a fraction of numBuckets / 2^31.
+ */
+public class FeatureHasher implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private final int numBuckets;
+	private final int seed;
+
+	public FeatureHasher(int numBuckets) {
+		this(numBuckets, 0);
+	}
+
+	public FeatureHasher(int numBuckets, int seed) {
+		if (numBuckets < 1)
+			throw new IllegalArgumentException("Need at least one bucket");
+		this.numBuckets = numBuckets;
+		this.seed = seed;
+	}
+
+	public int getNumBuckets() {
+		return numBuckets;
+	}
+
+	public int getSeed() {
+		return seed;
+	}
+
+	/**
+	 * Number of columns of the hashed rows, including the intercept
+	 */
+	public int numColumns() {
+		return numBuckets + 1;
+	}
+
+	/**
+	 * The hashed features of one instance: distinct columns in increasing
+	 * order and their values. Reused from instance to instance.
+	 */
+	public static class HashedRow {
+		private int[] columns = new int[16];
+		private double[] values = new double[16];
+		private int size;
+
+		/** Scratch of finish, grown with the row */
+		private long[] keys = new long[16];
+		private double[] unsorted = new double[16];
+
+		public int size() {
+			return size;
+		}
+
+		public int[] getColumns() {
+			return columns;
+		}
+
+		public double[] getValues() {
+			return values;
+		}
+
+		private void add(int column, double value) {
+			if (size == columns.length) {
+				columns = Arrays.copyOf(columns, size * 2);
+				values = Arrays.copyOf(values, size * 2);
+			}
+			columns[size] = column;
+			values[size++] = value;
+		}
+
+		/**
+		 * Sorts the entries by column and merges those of the same column,
+		 * dropping the ones that cancel out
+		 */
+		private void finish() {
+			// Sort by column, keeping the position to carry the value along
+			if (keys.length < size) {
+				keys = new long[columns.length];
+				unsorted = new double[columns.length];
+			}
+			for (int i = 0; i < size; i++)
+				keys[i] = (long) columns[i] << 32 | i;
+			Arrays.sort(keys, 0, size);
+			System.arraycopy(values, 0, unsorted, 0, size);
+			for (int i = 0; i < size; i++) {
+				columns[i] = (int) (keys[i] >>> 32);
+				values[i] = unsorted[(int) keys[i]];
+			}
+			int n = 0;
+			for (int i = 0; i < size; i++) {
+				if (n > 0 && columns[n - 1] == columns[i])
+					values[n - 1] += values[i];
+				else {
+					columns[n] = columns[i];
+					values[n++] = values[i];
+				}
+			}
+			size = 0;
+			for (int i = 0; i < n; i++)
+				if (values[i] != 0d) {
+					columns[size] = columns[i];
+					values[size++] = values[i];
+				}
+		}
+	}
+
+	/**
+	 * Hashes the attributes of an instance, but the class, into row
+	 */
+	public void hash(Instance instance, HashedRow row) {
+		row.size = 0;
+		int classIndex = instance.classIndex();
+		for (int p = 0; p < instance.numValues(); p++) {
+			int k = instance.index(p);
+			if (k == classIndex || instance.isMissingSparse(p))
+				continue;
+			double value = instance.valueSparse(p);
+			Attribute a = instance.attribute(k);
+			int nameHash = murmur3(a.name(), seed);
+			if (a.isString())
+				hashTokens(instance.stringValue(k), nameHash, row);
+			else if (a.isNominal()) {
+				if (value != 0d)
+					addFeature(murmur3(a.value((int) value), nameHash), 1, row);
+			} else if (value != 0d)
+				addFeature(nameHash, value, row);
+		}
+		row.finish();
+	}
+
+	private void hashTokens(String text, int nameHash, HashedRow row) {
+		int start = -1;
+		for (int i = 0; i <= text.length(); i++) {
+			boolean space = i == text.length()
+					|| Character.isWhitespace(text.charAt(i));
+			if (!space && start < 0)
+				start = i;
+			else if (space && start >= 0) {
+				addFeature(murmur3(text.substring(start, i), nameHash), 1, row);
+				start = -1;
+			}
+		}
+	}
+
+	private void addFeature(int hash, double value, HashedRow row) {
+		int bucket = (hash & 0x7fffffff) % numBuckets;
+		row.add(bucket + 1, hash < 0 ? -value : value);
+	}
+
+	/**
+	 * Hashes every instance of data, whether its class is missing or not,
+	 * into a row of a new matrix. The matrix is in attribute units, as
+	 * instances are scored.
+	 */
+	public SparseDesignMatrix hash(Instances data) {
+		int n = data.numInstances();
+		SparseDesignMatrix matrix = new SparseDesignMatrix(numColumns(), n,
+				16 * n);
+		HashedRow row = new HashedRow();
+		for (int i = 0; i < n; i++) {
+			hash(data.instance(i), row);
+			for (int p = 0; p < row.size; p++)
+				matrix.add(row.columns[p], row.values[p]);
+			matrix.endRow();
+		}
+		return matrix;
+	}
+
+	/**
+	 * 32 bit MurmurHash3 of the UTF-16 code units of s, two to a block
+	 */
+	static int murmur3(String s, int seed) {
+		int h = seed;
+		int length = s.length();
+		for (int i = 1; i < length; i += 2) {
+			int k = s.charAt(i - 1) | (s.charAt(i) << 16);
+			h = Integer.rotateLeft(h ^ mixBlock(k), 13) * 5 + 0xe6546b64;
+		}
+		if ((length & 1) == 1)
+			h ^= mixBlock(s.charAt(length - 1));
+		h ^= 2 * length;
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	private static int mixBlock(int k) {
+		k *= 0xcc9e2d51;
+		k = Integer.rotateLeft(k, 15);
+		return k * 0x1b873593;
+	}
+}
@@ -0,0 +1,28 @@
+package in.ac.iitb.cse.qh.classifiers;
+
+/**
+ * Training data of {@link ModifiedLogistic}: one row per instance, with the
+ * constant intercept term in column 0 followed by the predictors.
+ */
+public interface FeatureMatrix {
+	int numRows();
+
+	int numColumns();
+
+	double get(int row, int column);
+
+	/**
+	 * Dot product of a row with w[wOffset .. wOffset + numColumns)
+	 */
+	double dot(int row, double[] w, int wOffset);
+
+	/**
+	 * dst[dstOffset + j] += alpha * row[j] for every column j
+	 */
+	void addRow(int row, double alpha, double[] dst, int dstOffset);
+
+	/**
+	 * A dense copy of a row
+	 */
+	double[] getRow(int row);
+}
@@ -0,0 +1,87 @@
+package in.ac.iitb.cse.qh.classifiers;
+
+import in.ac.iitb.cse.qh.util.VectorKernels;
+
+import java.io.Serializable;
+
+/**
+ * A dense design matrix stored row-major in single precision, at half the
+ * memory of {@link DesignMatrix}. Values are rounded to float when stored;
+ * dot products and updates still accumulate in double.
+ */
+public class FloatDesignMatrix implements FeatureMatrix, Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private final float[] values;
+	private final int numRows;
+	private final int numColumns;
+
+	public FloatDesignMatrix(int numRows, int numColumns) {
+		if ((long) numRows * numColumns > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Design matrix of " + numRows
+					+ " x " + numColumns + " is too large");
+		this.numRows = numRows;
+		this.numColumns = numColumns;
+		values = new float[numRows * numColumns];
+	}
+
+	@Override
+	public int numRows() {
+		return numRows;
+	}
+
+	@Override
+	public int numColumns() {
+		return numColumns;
+	}
+
+	/**
+	 * The backing row-major array
+	 */
+	public float[] getValues() {
+		return values;
+	}
+
+	public int rowOffset(int row) {
+		return row * numColumns;
+	}
+
+	@Override
+	public double get(int row, int column) {
+		return values[row * numColumns + column];
+	}
+
+	public void set(int row, int column, double value) {
+		values[row * numColumns + column] = (float) value;
+	}
+
+	/**
+	 * Stores a whole row, rounding every value to float
+	 */
+	public void setRow(int row, double[] r) {
+		int off = row * numColumns;
+		for (int j = 0; j < numColumns; j++)
+			values[off + j] = (float) r[j];
+	}
+
+	@Override
+	public double dot(int row, double[] w, int wOffset) {
+		return VectorKernels.dot(values, row * numColumns, w, wOffset,
+				numColumns);
+	}
+
+	@Override
+	public void addRow(int row, double alpha, double[] dst, int dstOffset) {
+		VectorKernels.axpy(alpha, values, row * numColumns, dst, dstOffset,
+				numColumns);
+	}
+
+	@Override
+	public double[] getRow(int row) {
+		double[] r = new double[numColumns];
+		int off = row * numColumns;
+		for (int j = 0; j < numColumns; j++)
+			r[j] = values[off + j];
+		return r;
+	}
+}
@@ -0,0 +1,295 @@
+package in.ac.iitb.cse.qh.classifiers;
+
+import in.ac.iitb.cse.qh.util.MetaConstants;
+import in.ac.iitb.cse.qh.util.ParallelUtil;
+import in.ac.iitb.cse.qh.util.VectorKernels;
+
+import java.util.Arrays;
+
+/**
+ * Builds the Hessian of the logistic log loss, X' W X, where W holds the
+ * sigmoid weights p(1 - p) of every instance. Margins and weights are
+ * computed once per instance; the matrix is then accumulated into packed
+ * lower-triangular storage, walking the data in blocks of instances and the
+ * Hessian in blocks of rows. Each Hessian row is owned by exactly one task
+ * and sums over the instances in order, so the result does not depend on the
+ * number of threads. Sparse data only visits pairs of non-zero columns; if
+ * it has a column centre, the Hessian is that of the centred data, T' H T
+ * with H built from the stored rows and T the intercept shift of
+ * {@link SparseDesignMatrix#shiftIntercept}.
+ */
+public class HessianBuilder {
+	/** Number of instances visited per pass over a block of Hessian rows */
+	private static final int INSTANCE_BLOCK = 256;
+
+	/** Number of Hessian rows per task */
+	private static final int ROW_BLOCK = 32;
+
+	private final FeatureMatrix data;
+
+	/** The data if it is centred implicitly, otherwise null */
+	private final SparseDesignMatrix centred;
+
+	private int numThreads = ParallelUtil.getDefaultThreads();
+
+	/** Instance weights, or null */
+	private double[] weights;
+
+	public HessianBuilder(FeatureMatrix data) {
+		this.data = data;
+		if (data instanceof SparseDesignMatrix
+				&& null != ((SparseDesignMatrix) data).getColumnCentre())
+			centred = (SparseDesignMatrix) data;
+		else
+			centred = null;
+	}
+
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
+
+	/**
+	 * Weights of the instances, which their sigmoid weights are multiplied
+	 * by; null, the default, for all ones
+	 */
+	public void setInstanceWeights(double[] weights) {
+		this.weights = weights;
+	}
+
+	/**
+	 * Offset of entry (i, j), j <= i, in packed lower-triangular storage
+	 */
+	public static int packedIndex(int i, int j) {
+		return i * (i + 1) / 2 + j;
+	}
+
+	/**
+	 * Sigmoid weights p(1 - p) of every instance for the parameters x, times
+	 * the instance weights if set
+	 */
+	public double[] sigmoidWeights(double[] x) {
+		if (null != centred) {
+			x = x.clone();
+			centred.shiftIntercept(x, 0);
+		}
+		double[] s = new double[data.numRows()];
+		for (int k = 0; k < s.length; k++) {
+			double temp = data.dot(k, x, 0);
+			if (temp > MetaConstants.MAX_POWER)
+				temp = MetaConstants.MAX_POWER;
+			if (temp < -MetaConstants.MAX_POWER)
+				temp = -MetaConstants.MAX_POWER;
+			temp = Math.exp(-temp);
+			s[k] = temp / ((1 + temp) * (1 + temp));
+			if (null != weights)
+				s[k] *= weights[k];
+		}
+		return s;
+	}
+
+	/**
+	 * out = X' diag(s) X v, the product of the Hessian with sigmoid weights s
+	 * (see {@link #sigmoidWeights}) and v, in one pass over the data and
+	 * without forming the Hessian
+	 */
+	public void multiply(double[] s, double[] v, double[] out) {
+		if (null != centred) {
+			v = v.clone();
+			centred.shiftIntercept(v, 0);
+		}
+		Arrays.fill(out, 0d);
+		for (int k = 0; k < s.length; k++) {
+			if (s[k] == 0d)
+				continue;
+			double t = s[k] * data.dot(k, v, 0);
+			if (t != 0d)
+				data.addRow(k, t, out, 0);
+		}
+		if (null != centred)
+			centred.centreGradient(out, 0);
+	}
+
+	/**
+	 * Diagonal of the Hessian with sigmoid weights s
+	 */
+	public double[] diagonal(double[] s) {
+		int n = data.numColumns();
+		double[] diag = new double[n];
+		if (data instanceof SparseDesignMatrix) {
+			SparseDesignMatrix sparse = (SparseDesignMatrix) data;
+			int[] columns = sparse.getColumns();
+			double[] values = sparse.getValues();
+			double[] scale = sparse.getColumnScale();
+			// Row 0 of the Hessian, for the centre
+			double[] first = new double[n];
+			for (int k = 0; k < s.length; k++) {
+				diag[0] += s[k];
+				for (int p = sparse.rowStart(k); p < sparse.rowEnd(k); p++) {
+					double v = values[p] * scale[columns[p]];
+					diag[columns[p]] += s[k] * v * v;
+					first[columns[p]] += s[k] * v;
+				}
+			}
+			double[] centre = sparse.getColumnCentre();
+			if (null != centre)
+				for (int j = 1; j < n; j++)
+					diag[j] += centre[j] * (centre[j] * diag[0] - 2 * first[j]);
+			return diag;
+		}
+		for (int k = 0; k < s.length; k++)
+			for (int j = 0; j < n; j++) {
+				double v = data.get(k, j);
+				diag[j] += s[k] * v * v;
+			}
+		return diag;
+	}
+
+	/**
+	 * Builds the Hessian at x in packed lower-triangular storage of length
+	 * n(n + 1)/2, n = x.length
+	 */
+	public double[] buildPacked(double[] x) {
+		final int n = x.length;
+		final double[] s = sigmoidWeights(x);
+		final double[] packed = new double[n * (n + 1) / 2];
+		final int numBlocks = (n + ROW_BLOCK - 1) / ROW_BLOCK;
+		int numShards = Math.min(numBlocks, Math.max(1, numThreads) * 4);
+		if (numThreads <= 1)
+			numShards = 1;
+
+		try {
+			ParallelUtil.runShards(numBlocks, numShards,
+					new ParallelUtil.ShardTask() {
+						@Override
+						public void run(int shard, int from, int to) {
+							for (int b = from; b < to; b++) {
+								int rowTo = Math.min(n, (b + 1) * ROW_BLOCK);
+								if (data instanceof SparseDesignMatrix)
+									accumulateSparse(s, packed, b * ROW_BLOCK,
+											rowTo);
+								else if (data instanceof FloatDesignMatrix)
+									accumulateFloat(s, packed, b * ROW_BLOCK,
+											rowTo);
+								else
+									accumulate(s, packed, b * ROW_BLOCK, rowTo);
+							}
+						}
+					});
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			// the tasks above throw no checked exceptions
+			throw new IllegalStateException(e);
+		}
+		if (null != centred)
+			centre(packed, n);
+		return packed;
+	}
+
+	/**
+	 * Replaces the packed Hessian H of the stored rows by T' H T, that of the
+	 * centred rows: entry (i, j) becomes H_ij - c_i H_0j - c_j H_0i + c_i c_j
+	 * H_00
+	 */
+	private void centre(double[] packed, int n) {
+		double[] c = centred.getColumnCentre();
+		double[] first = new double[n];
+		for (int j = 0; j < n; j++)
+			first[j] = packed[packedIndex(j, 0)];
+		for (int i = 1; i < n; i++) {
+			int base = packedIndex(i, 0);
+			for (int j = 0; j <= i; j++)
+				packed[base + j] += c[i] * (c[j] * first[0] - first[j]) - c[j]
+						* first[i];
+		}
+	}
+
+	/**
+	 * Adds the contribution of all instances to Hessian rows [rowFrom, rowTo)
+	 */
+	private void accumulate(double[] s, double[] packed, int rowFrom, int rowTo) {
+		DesignMatrix data = (DesignMatrix) this.data;
+		double[] values = data.getValues();
+		int numRows = data.numRows();
+		for (int kb = 0; kb < numRows; kb += INSTANCE_BLOCK) {
+			int kEnd = Math.min(numRows, kb + INSTANCE_BLOCK);
+			for (int i = rowFrom; i < rowTo; i++) {
+				int base = packedIndex(i, 0);
+				for (int k = kb; k < kEnd; k++) {
+					int row = data.rowOffset(k);
+					double a = s[k] * values[row + i];
+					if (a != 0d)
+						VectorKernels.axpy(a, values, row, packed, base, i + 1);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Single precision counterpart of {@link #accumulate}
+	 */
+	private void accumulateFloat(double[] s, double[] packed, int rowFrom,
+			int rowTo) {
+		FloatDesignMatrix data = (FloatDesignMatrix) this.data;
+		float[] values = data.getValues();
+		int numRows = data.numRows();
+		for (int kb = 0; kb < numRows; kb += INSTANCE_BLOCK) {
+			int kEnd = Math.min(numRows, kb + INSTANCE_BLOCK);
+			for (int i = rowFrom; i < rowTo; i++) {
+				int base = packedIndex(i, 0);
+				for (int k = kb; k < kEnd; k++) {
+					int row = data.rowOffset(k);
+					double a = s[k] * values[row + i];
+					if (a != 0d)
+						VectorKernels.axpy(a, values, row, packed, base, i + 1);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sparse counterpart of {@link #accumulate}: every instance only touches
+	 * the entries whose row and column are both non-zero, plus the implicit
+	 * intercept column 0
+	 */
+	private void accumulateSparse(double[] s, double[] packed, int rowFrom,
+			int rowTo) {
+		SparseDesignMatrix data = (SparseDesignMatrix) this.data;
+		int[] columns = data.getColumns();
+		double[] values = data.getValues();
+		double[] scale = data.getColumnScale();
+		for (int k = 0; k < data.numRows(); k++) {
+			int start = data.rowStart(k), end = data.rowEnd(k);
+			if (rowFrom == 0)
+				packed[0] += s[k];
+			for (int p = start; p < end; p++) {
+				int i = columns[p];
+				if (i < rowFrom)
+					continue;
+				if (i >= rowTo)
+					break;
+				double a = s[k] * (values[p] * scale[i]);
+				int base = packedIndex(i, 0);
+				packed[base] += a; // intercept column
+				for (int q = start; q <= p; q++)
+					packed[base + columns[q]] += a
+							* (values[q] * scale[columns[q]]);
+			}
+		}
+	}
+
+	/**
+	 * Expands packed lower-triangular storage into a full symmetric matrix
+	 */
+	public static double[][] unpack(double[] packed, int n) {
+		double[][] full = new double[n][n];
+		for (int i = 0; i < n; i++) {
+			int base = packedIndex(i, 0);
+			for (int j = 0; j <= i; j++) {
+				full[i][j] = packed[base + j];
+				full[j][i] = packed[base + j];
+			}
+		}
+		return full;
+	}
+}
@@ -0,0 +1,275 @@
+package in.ac.iitb.cse.qh.classifiers;
+
+import in.ac.iitb.cse.qh.linalg.DenseMatrix;
+import in.ac.iitb.cse.qh.linalg.Factorization;
+import in.ac.iitb.cse.qh.linalg.LinearAlgebra;
+
+import java.io.Serializable;
+
+/**
+ * What a binary {@link ModifiedLogistic} keeps of the data it has seen, so
+ * that new instances can be added without going over the old ones again.
+ * The negative log-likelihood of the old data is replaced by its quadratic
+ * (Laplace) approximation at the current weights w0,
+ *
+ * Q(w) = loss + g'(w - w0) + (w - w0)' H (w - w0) / 2,
+ *
+ * and an update minimises Q plus the likelihood of the new instances plus
+ * the ridge penalty with a few Newton steps. The approximation only holds
+ * near w0, so an update that moves far from it, measured by the predicted
+ * rise in the loss of the old data per unit of instance weight, is rejected.
+ * All weights are in standardised units. H is built by
+ * {@link HessianBuilder} and kept in its packed lower-triangular storage.
+ */
+class IncrementalState implements Serializable {
+	private static final long serialVersionUID = 2L;
+
+	/** Tolerance on half the squared Newton decrement, relative to the loss */
+	private static final double TOLERANCE = 1e-10;
+
+	private double[] w;
+	/** H, packed as by {@link HessianBuilder#packedIndex} */
+	private double[] hessian;
+	private double[] gradient;
+	private double loss;
+	private double totalWeight;
+
+	/** Standardisation and imputation of the training data */
+	final double[] xMean;
+	final double[] xSD;
+	final double[] fill;
+
+	/**
+	 * Builds the state from the standardised training data at weights w
+	 *
+	 * @param fill
+	 *            replacement of missing values in attribute units, or null to
+	 *            use the means
+	 */
+	IncrementalState(FeatureMatrix data, int[] cls, double[] weights,
+			double[] w, double[] xMean, double[] xSD, double[] fill) {
+		this.w = w.clone();
+		this.xMean = xMean;
+		this.xSD = xSD;
+		this.fill = fill;
+		gradient = new double[w.length];
+		loss = accumulate(data, cls, weights, this.w, gradient);
+		hessian = hessian(data, weights, this.w);
+		for (double weight : weights)
+			totalWeight += weight;
+	}
+
+	double[] getWeights() {
+		return w;
+	}
+
+	/**
+	 * Loss of all data seen so far at the current weights, without the ridge
+	 */
+	double getLoss() {
+		return loss;
+	}
+
+	/**
+	 * Adds the weighted negative log-likelihood of the rows of data at w to
+	 * grad and returns it. Class 0 has probability sigmoid(x.w). Implicitly
+	 * centred sparse data is taken as centred.
+	 */
+	private static double accumulate(FeatureMatrix data, int[] cls,
+			double[] weights, double[] w, double[] grad) {
+		SparseDesignMatrix centred = null;
+		if (data instanceof SparseDesignMatrix
+				&& null != ((SparseDesignMatrix) data).getColumnCentre()) {
+			centred = (SparseDesignMatrix) data;
+			w = w.clone();
+			centred.shiftIntercept(w, 0);
+		}
+		// The gradient of these rows alone, for the centre to be applied to
+		double[] g = null != centred ? new double[grad.length] : grad;
+		double nll = 0d;
+		for (int i = 0; i < data.numRows(); i++) {
+			double z = data.dot(i, w, 0);
+			boolean first = cls[i] == 0;
+			double m = first ? -z : z;
+			nll += weights[i]
+					* (m > 0 ? m + Math.log1p(Math.exp(-m)) : Math.log1p(Math
+							.exp(m)));
+			double p = z >= 0 ? 1 / (1 + Math.exp(-z)) : Math.exp(z)
+					/ (1 + Math.exp(z));
+			data.addRow(i, weights[i] * (first ? p - 1 : p), g, 0);
+		}
+		if (null != centred) {
+			centred.centreGradient(g, 0);
+			for (int j = 0; j < grad.length; j++)
+				grad[j] += g[j];
+		}
+		return nll;
+	}
+
+	/**
+	 * Packed Hessian of the weighted negative log-likelihood of the rows of
+	 * data at w
+	 */
+	private static double[] hessian(FeatureMatrix data, double[] weights,
+			double[] w) {
+		HessianBuilder builder = new HessianBuilder(data);
+		builder.setInstanceWeights(weights);
+		return builder.buildPacked(w);
+	}
+
+	/**
+	 * H v for the packed H
+	 */
+	private static double[] times(double[] packed, double[] v) {
+		int n = v.length;
+		double[] out = new double[n];
+		for (int i = 0, p = 0; i < n; i++)
+			for (int j = 0; j <= i; j++, p++) {
+				out[i] += packed[p] * v[j];
+				if (j < i)
+					out[j] += packed[p] * v[i];
+			}
+		return out;
+	}
+
+	/**
+	 * Fits the weights to the old data, through Q, and the new rows
+	 *
+	 * @param data
+	 *            the new instances, standardised like the training data
+	 * @param ridge
+	 *            ridge hyperparameter of every weight; the intercept is not
+	 *            penalised
+	 * @param maxSteps
+	 *            the number of Newton steps allowed
+	 * @param driftThreshold
+	 *            the largest predicted rise in the loss of the old data per
+	 *            unit of weight that is accepted
+	 * @return the new weights, or null if the fit did not converge or drifted
+	 *         too far, in which case the state is unchanged
+	 */
+	double[] update(FeatureMatrix data, int[] cls, double[] weights,
+			double[] ridge, int maxSteps, double driftThreshold) {
+		int dim = w.length;
+		double[] x = w.clone();
+		double[] grad = new double[dim];
+		DenseMatrix a = new DenseMatrix(dim, dim);
+		double f = objective(data, cls, weights, ridge, x, grad);
+		for (int step = 0;; step++) {
+			newtonMatrix(data, weights, ridge, x, a);
+			Factorization factor = LinearAlgebra.factorize(a);
+			if (!factor.isCholesky())
+				return null;
+			double[] dir = grad.clone();
+			factor.solve(dir);
+			double decrement = 0d;
+			for (int j = 0; j < dim; j++)
+				decrement += grad[j] * dir[j];
+			if (decrement / 2 <= TOLERANCE * (1 + Math.abs(f)))
+				break;
+			if (step == maxSteps)
+				return null;
+
+			// Backtracking line search along the Newton direction
+			double[] next = new double[dim];
+			double fNext = Double.NaN;
+			for (double t = 1d; t > 1e-10; t /= 2) {
+				for (int j = 0; j < dim; j++)
+					next[j] = x[j] - t * dir[j];
+				fNext = objective(data, cls, weights, ridge, next, null);
+				if (fNext <= f - t * decrement / 4)
+					break;
+			}
+			if (!(fNext <= f))
+				return null;
+			x = next;
+			f = objective(data, cls, weights, ridge, x, grad);
+		}
+		if (Double.isNaN(f))
+			return null;
+
+		// Predicted rise in the loss of the old data
+		double[] delta = new double[dim];
+		for (int j = 0; j < dim; j++)
+			delta[j] = x[j] - w[j];
+		double[] hd = times(hessian, delta);
+		double drift = 0d;
+		for (int j = 0; j < dim; j++)
+			drift += delta[j] * hd[j];
+		if (drift / 2 > driftThreshold * totalWeight)
+			return null;
+
+		commit(data, cls, weights, x);
+		return x.clone();
+	}
+
+	/**
+	 * Q plus the likelihood of the new rows plus the ridge penalty at x. If
+	 * grad is not null, the gradient is written into it.
+	 */
+	private double objective(FeatureMatrix data, int[] cls, double[] weights,
+			double[] ridge, double[] x, double[] grad) {
+		int dim = w.length;
+		double[] g = null != grad ? grad : new double[dim];
+		double f = quadratic(x, g);
+		f += accumulate(data, cls, weights, x, g);
+		for (int r = 1; r < dim; r++) {
+			f += ridge[r] * x[r] * x[r];
+			g[r] += 2 * ridge[r] * x[r];
+		}
+		return f;
+	}
+
+	/**
+	 * Writes the Hessian of the objective at x, H plus that of the new rows
+	 * plus the ridge, into a, which is overwritten in full
+	 */
+	private void newtonMatrix(FeatureMatrix data, double[] weights,
+			double[] ridge, double[] x, DenseMatrix a) {
+		int dim = w.length;
+		double[] rows = hessian(data, weights, x);
+		for (int i = 0, p = 0; i < dim; i++)
+			for (int j = 0; j <= i; j++, p++) {
+				double h = hessian[p] + rows[p];
+				if (i == j && i > 0)
+					h += 2 * ridge[i];
+				a.set(i, j, h);
+				a.set(j, i, h);
+			}
+	}
+
+	/**
+	 * Q at x; writes its gradient into grad
+	 */
+	private double quadratic(double[] x, double[] grad) {
+		int dim = w.length;
+		double[] delta = new double[dim];
+		for (int j = 0; j < dim; j++)
+			delta[j] = x[j] - w[j];
+		double[] hd = times(hessian, delta);
+		double f = loss;
+		for (int r = 0; r < dim; r++) {
+			grad[r] = gradient[r] + hd[r];
+			f += delta[r] * (gradient[r] + hd[r] / 2);
+		}
+		return f;
+	}
+
+	/**
+	 * Moves the expansion point to x and folds the new rows into Q. The
+	 * Hessian of the old data is kept from its own expansion point.
+	 */
+	private void commit(FeatureMatrix data, int[] cls, double[] weights,
+			double[] x) {
+		double[] grad = new double[w.length];
+		double q = quadratic(x, grad);
+		loss = q + accumulate(data, cls, weights, x, grad);
+		double[] rows = hessian(data, weights, x);
+		for (int p = 0; p < hessian.length; p++)
+			hessian[p] += rows[p];
+		gradient = grad;
+		w = x.clone();
+		for (double weight : weights)
+			totalWeight += weight;
+	}
+}
@@ -0,0 +1,57 @@
+package in.ac.iitb.cse.qh.classifiers;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A source of training instances that is read in batches, front to back, and
+ * can be rewound for another pass. Only the current batch has to be in
+ * memory, so data sets larger than the heap can be trained on with
+ * {@link StreamingLogisticTrainer}.
+ */
+public interface InstanceBatchSource extends Closeable {
+
+	/**
+	 * Number of predictor attributes, i.e. attributes other than the class
+	 */
+	int numPredictors();
+
+	int numClasses();
+
+	/**
+	 * Index of the class among the numPredictors() + 1 attributes; the
+	 * predictors keep their attribute order around it
+	 */
+	int classIndex();
+
+	/**
+	 * Whether a predictor is nominal. Its values are then the value indices 0
+	 * and 1, and a missing one is replaced by the weighted mode, not the mean.
+	 *
+	 * @param predictor
+	 *            the predictor, numbered from 0 in the order of read
+	 */
+	boolean isNominal(int predictor);
+
+	/**
+	 * Rewinds to the first instance
+	 */
+	void reset() throws IOException;
+
+	/**
+	 * Reads the next instances
+	 *
+	 * @param values
+	 *            predictor values, written row-major with numPredictors()
+	 *            values per instance; NaN marks a missing value
+	 * @param classes
+	 *            class of every instance read
+	 * @param weights
+	 *            weight of every instance read
+	 * @param max
+	 *            maximum number of instances to read
+	 * @return the number of instances read, 0 at the end of the data
+	 */
+	int read(double[] values, int[] classes, double[] weights, int max)
+			throws IOException;
+}
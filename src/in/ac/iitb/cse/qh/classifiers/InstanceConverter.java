@@ -0,0 +1,277 @@
+package in.ac.iitb.cse.qh.classifiers;
+
+import weka.core.Attribute;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Converts Instances to the numeric layout of the design matrix in a single
+ * pass, doing the work of ReplaceMissingValues and NominalToBinary without
+ * their copies of the data. Column 0 is the intercept; every other attribute
+ * but the class follows in order. Numeric attributes and nominal ones with at
+ * most two values take one column, holding the value or the value index.
+ * Other nominal attributes take one indicator column per value.
+ *
+ * Missing values are written as NaN while the weighted statistics are
+ * gathered. Once all instances are converted, {@link #getFillValues(double)} gives
+ * the replacement for every column: the weighted mean of a numeric
+ * attribute, the weighted mode of a nominal one.
+ */
+class InstanceConverter {
+	private final int classIndex;
+
+	/** Index of the class among the converted attributes */
+	private final int expandedClass;
+
+	/** First column of every attribute, -1 for the class */
+	private final int[] firstColumn;
+
+	/** Number of columns of every attribute, 0 for the class */
+	private final int[] width;
+
+	/** Nominal attributes expanded to indicator columns */
+	private final int[] expanded;
+
+	/** Nominal attributes with at most two values */
+	private final int[] binary;
+
+	private final int numColumns;
+
+	// Weighted statistics of the values that are not missing
+	private final double[] sum;
+	private final double[] sumSq;
+	private final double[] missing;
+
+	/** Weighted counts of the values of every nominal attribute */
+	private final double[][] counts;
+
+	InstanceConverter(Instances header) {
+		classIndex = header.classIndex();
+		int numAttributes = header.numAttributes();
+		firstColumn = new int[numAttributes];
+		width = new int[numAttributes];
+		counts = new double[numAttributes][];
+		int column = 1, numExpanded = 0, numBinary = 0, classColumn = -1;
+		for (int k = 0; k < numAttributes; k++) {
+			if (k == classIndex) {
+				firstColumn[k] = -1;
+				classColumn = column - 1;
+				continue;
+			}
+			Attribute a = header.attribute(k);
+			firstColumn[k] = column;
+			width[k] = 1;
+			if (a.isNominal()) {
+				counts[k] = new double[a.numValues()];
+				if (a.numValues() > 2) {
+					width[k] = a.numValues();
+					numExpanded++;
+				} else
+					numBinary++;
+			}
+			column += width[k];
+		}
+		numColumns = column;
+		expandedClass = classColumn;
+		expanded = new int[numExpanded];
+		binary = new int[numBinary];
+		for (int k = 0, e = 0, b = 0; k < numAttributes; k++) {
+			if (width[k] > 1)
+				expanded[e++] = k;
+			else if (null != counts[k])
+				binary[b++] = k;
+		}
+		sum = new double[numColumns];
+		sumSq = new double[numColumns];
+		missing = new double[numColumns];
+	}
+
+	/**
+	 * Number of columns, including the intercept
+	 */
+	int numColumns() {
+		return numColumns;
+	}
+
+	/**
+	 * Index the class would have among the converted attributes, as
+	 * NominalToBinary reports it
+	 */
+	int classIndex() {
+		return expandedClass;
+	}
+
+	/**
+	 * Names of the columns after the intercept: the attribute name, followed
+	 * by "=value" for indicator columns
+	 */
+	String[] columnNames(Instances header) {
+		String[] names = new String[numColumns - 1];
+		for (int k = 0; k < firstColumn.length; k++) {
+			int col = firstColumn[k];
+			if (col < 0)
+				continue;
+			Attribute a = header.attribute(k);
+			if (width[k] == 1)
+				names[col - 1] = a.name();
+			else
+				for (int v = 0; v < width[k]; v++)
+					names[col + v - 1] = a.name() + "=" + a.value(v);
+		}
+		return names;
+	}
+
+	/**
+	 * Number of instances whose class is not missing
+	 */
+	static int countWithClass(Instances data) {
+		int n = 0;
+		for (int i = 0; i < data.numInstances(); i++)
+			if (!data.instance(i).classIsMissing())
+				n++;
+		return n;
+	}
+
+	/**
+	 * Writes a dense instance into row, which has numColumns() entries
+	 */
+	void convert(Instance instance, double[] row) {
+		double weight = instance.weight();
+		row[0] = 1;
+		for (int k = 0; k < firstColumn.length; k++) {
+			int col = firstColumn[k];
+			if (col < 0)
+				continue;
+			if (instance.isMissing(k)) {
+				for (int j = col; j < col + width[k]; j++) {
+					row[j] = Double.NaN;
+					missing[j] += weight;
+				}
+				continue;
+			}
+			double value = instance.value(k);
+			if (width[k] > 1) {
+				for (int j = col; j < col + width[k]; j++)
+					row[j] = 0;
+				row[col + (int) value] = 1;
+				accumulate(col + (int) value, 1, weight);
+			} else {
+				row[col] = value;
+				accumulate(col, value, weight);
+			}
+			if (null != counts[k])
+				counts[k][(int) value] += weight;
+		}
+	}
+
+	/**
+	 * Appends a sparse instance as the next row of data, visiting only its
+	 * stored values
+	 */
+	void convert(Instance instance, SparseDesignMatrix data) {
+		double weight = instance.weight();
+		// Expanded nominals not stored have value 0, which sets column 0
+		int e = 0;
+		for (int p = 0; p < instance.numValues(); p++) {
+			int k = instance.index(p);
+			int col = firstColumn[k];
+			if (col < 0)
+				continue;
+			for (; e < expanded.length && expanded[e] < k; e++)
+				addIndicator(expanded[e], 0, weight, data);
+			if (e < expanded.length && expanded[e] == k)
+				e++;
+			if (instance.isMissingSparse(p)) {
+				for (int j = col; j < col + width[k]; j++) {
+					data.add(j, Double.NaN);
+					missing[j] += weight;
+				}
+				continue;
+			}
+			double value = instance.valueSparse(p);
+			if (width[k] > 1) {
+				addIndicator(k, (int) value, weight, data);
+				continue;
+			}
+			data.add(col, value);
+			accumulate(col, value, weight);
+			if (null != counts[k])
+				counts[k][(int) value] += weight;
+		}
+		for (; e < expanded.length; e++)
+			addIndicator(expanded[e], 0, weight, data);
+		data.endRow();
+		// Binary nominals not stored have value 0 as well
+		for (int k : binary)
+			if (!isStored(instance, k))
+				counts[k][0] += weight;
+	}
+
+	private void addIndicator(int k, int value, double weight,
+			SparseDesignMatrix data) {
+		data.add(firstColumn[k] + value, 1);
+		accumulate(firstColumn[k] + value, 1, weight);
+		counts[k][value] += weight;
+	}
+
+	private static boolean isStored(Instance instance, int k) {
+		int lo = 0, hi = instance.numValues() - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int index = instance.index(mid);
+			if (index == k)
+				return true;
+			if (index < k)
+				lo = mid + 1;
+			else
+				hi = mid - 1;
+		}
+		return false;
+	}
+
+	private void accumulate(int column, double value, double weight) {
+		sum[column] += weight * value;
+		sumSq[column] += weight * value * value;
+	}
+
+	/**
+	 * Replacement of a missing value in every column: the weighted mean of a
+	 * numeric attribute, and the weighted mode of a nominal one, or its
+	 * indicator columns
+	 */
+	double[] getFillValues(double totWeights) {
+		double[] fill = new double[numColumns];
+		for (int k = 0; k < firstColumn.length; k++) {
+			int col = firstColumn[k];
+			if (col < 0)
+				continue;
+			if (null != counts[k]) {
+				int mode = 0;
+				for (int v = 1; v < counts[k].length; v++)
+					if (counts[k][v] > counts[k][mode])
+						mode = v;
+				if (width[k] > 1)
+					fill[col + mode] = 1;
+				else
+					fill[col] = mode;
+			} else {
+				double present = totWeights - missing[col];
+				if (present > 0)
+					fill[col] = sum[col] / present;
+			}
+		}
+		return fill;
+	}
+
+	/**
+	 * Weighted sums and sums of squares of every column once missing values
+	 * are replaced by fill, as {@link ModifiedLogistic#finishMoments} takes
+	 * them
+	 */
+	void getSums(double[] fill, double[] xSum, double[] xSumSq) {
+		for (int j = 1; j < numColumns; j++) {
+			xSum[j] = sum[j] + missing[j] * fill[j];
+			xSumSq[j] = sumSq[j] + missing[j] * fill[j] * fill[j];
+		}
+	}
+}
@@ -0,0 +1,379 @@
+package in.ac.iitb.cse.qh.classifiers;
+
+import in.ac.iitb.cse.qh.util.ParallelUtil;
+import in.ac.iitb.cse.qh.util.VectorKernels;
+
+import java.util.Arrays;
+
+/**
+ * Weighted multinomial log-loss with the ridge penalty used by
+ * {@link ModifiedLogistic}. The loss and its gradient are evaluated together
+ * in a single pass over the data: the margins of every instance are computed
+ * once and reused for both. Scratch space is allocated up front so the
+ * instance loop itself does not allocate.
+ *
+ * Two-class problems, which is all the meta optimizer trains, go through a
+ * separate kernel with a single margin per instance and no class loops.
+ *
+ * Sparse data with a column centre is treated as centred: every pass shifts
+ * the intercepts as {@link SparseDesignMatrix#shiftIntercept} describes and
+ * maps the result back, so the objective is that of the dense, centred data.
+ */
+class LogisticLoss {
+	/** Number of instances the binary kernel evaluates together */
+	private static final int BLOCK = 256;
+
+	/** Standardised training data, one row per instance */
+	private final FeatureMatrix data;
+
+	/** Class labels of instances */
+	private final int[] cls;
+
+	/** Weights of instances */
+	private final double[] weights;
+
+	/** Ridge hyperparameters, one per variable */
+	private final double[] ridge;
+
+	private final int numClasses;
+
+	/** Number of variables per class */
+	private final int dim;
+
+	/** Scratch: margins (and later probabilities) of the current instance */
+	private final double[] margins;
+
+	/** The data if it is centred implicitly, otherwise null */
+	private final SparseDesignMatrix centred;
+
+	/** Scratch: the argument of a pass with its intercepts shifted */
+	private final double[] shifted;
+
+	/** Per-shard partial results when the instance loop runs in parallel */
+	private double[] shardLoss;
+	private double[][] shardGrads;
+	private double[][] shardMargins;
+
+	/**
+	 * Class probabilities of every instance at the point of the last gradient
+	 * evaluation, numClasses - 1 per instance; only kept when Hessian-vector
+	 * products are needed
+	 */
+	private double[] probs;
+
+	/** Number of passes over the data so far */
+	private int numPasses;
+
+	LogisticLoss(FeatureMatrix data, int[] cls, double[] weights, double[] ridge,
+			int numClasses, int dim) {
+		this.data = data;
+		this.cls = cls;
+		this.weights = weights;
+		this.ridge = ridge;
+		this.numClasses = numClasses;
+		this.dim = dim;
+		margins = new double[numClasses - 1];
+		if (data instanceof SparseDesignMatrix
+				&& null != ((SparseDesignMatrix) data).getColumnCentre()) {
+			centred = (SparseDesignMatrix) data;
+			shifted = new double[(numClasses - 1) * dim];
+		} else {
+			centred = null;
+			shifted = null;
+		}
+	}
+
+	/**
+	 * Splits the instance loop into numShards shards evaluated in parallel.
+	 * Shard results are merged in shard order with compensated summation, so
+	 * the result is reproducible for a given number of shards.
+	 */
+	void setNumShards(int numShards) {
+		numShards = Math.max(1, Math.min(numShards, cls.length));
+		if (numShards == 1) {
+			shardGrads = null;
+			return;
+		}
+		shardLoss = new double[numShards];
+		shardGrads = new double[numShards][];
+		shardMargins = new double[numShards][numClasses - 1];
+	}
+
+	/**
+	 * Keeps the class probabilities computed with every gradient so that
+	 * {@link #hessianVector} can be used
+	 */
+	void setKeepCurvature(boolean keep) {
+		probs = keep ? new double[cls.length * (numClasses - 1)] : null;
+	}
+
+	int getNumPasses() {
+		return numPasses;
+	}
+
+	/**
+	 * Evaluates the objective at x and, if grad is not null, writes the
+	 * gradient at x into it.
+	 *
+	 * @param x
+	 *            the parameter values, (numClasses - 1) x dim
+	 * @param grad
+	 *            the array the gradient is written to, or null
+	 * @return the weighted negative log-likelihood plus the ridge penalty
+	 */
+	double evaluate(double[] x, double[] grad) throws Exception {
+		numPasses++;
+		double[] at = shift(x);
+		double nll = null == shardGrads ? evaluateRange(at, 0, cls.length,
+				grad, margins) : evaluateSharded(at, grad);
+		if (null != grad)
+			centreGradient(grad);
+
+		// Ridge: note that intercepts NOT included
+		int nK = numClasses - 1;
+		for (int offset = 0; offset < nK; offset++) {
+			for (int r = 1; r < dim; r++) {
+				double w = x[offset * dim + r];
+				nll += ridge[r] * w * w;
+				if (null != grad)
+					grad[offset * dim + r] += 2 * ridge[r] * w;
+			}
+		}
+
+		return nll;
+	}
+
+	private double evaluateSharded(final double[] x, double[] grad)
+			throws Exception {
+		final int numShards = shardGrads.length;
+		final boolean withGrad = null != grad;
+		ParallelUtil.runShards(cls.length, numShards,
+				new ParallelUtil.ShardTask() {
+					@Override
+					public void run(int shard, int from, int to) {
+						double[] g = null;
+						if (withGrad) {
+							if (null == shardGrads[shard]
+									|| shardGrads[shard].length != x.length)
+								shardGrads[shard] = new double[x.length];
+							g = shardGrads[shard];
+						}
+						shardLoss[shard] = evaluateRange(x, from, to, g,
+								shardMargins[shard]);
+					}
+				});
+
+		if (withGrad)
+			mergeShards(grad);
+		double nll = 0d, c = 0d;
+		for (int shard = 0; shard < numShards; shard++) {
+			double y = shardLoss[shard] - c;
+			double t = nll + y;
+			c = (t - nll) - y;
+			nll = t;
+		}
+		return nll;
+	}
+
+	/**
+	 * x with the intercepts shifted for the implicit centre, or x itself
+	 */
+	private double[] shift(double[] x) {
+		if (null == centred)
+			return x;
+		System.arraycopy(x, 0, shifted, 0, x.length);
+		for (int offset = 0; offset < numClasses - 1; offset++)
+			centred.shiftIntercept(shifted, offset * dim);
+		return shifted;
+	}
+
+	private void centreGradient(double[] g) {
+		if (null == centred)
+			return;
+		for (int offset = 0; offset < numClasses - 1; offset++)
+			centred.centreGradient(g, offset * dim);
+	}
+
+	/**
+	 * Sums the per-shard vectors into out, in shard order, with compensated
+	 * summation
+	 */
+	private void mergeShards(double[] out) {
+		for (int j = 0; j < out.length; j++) {
+			double sum = 0d, c = 0d;
+			for (int shard = 0; shard < shardGrads.length; shard++) {
+				double y = shardGrads[shard][j] - c;
+				double t = sum + y;
+				c = (t - sum) - y;
+				sum = t;
+			}
+			out[j] = sum;
+		}
+	}
+
+	/**
+	 * Product of the Hessian of the objective with v, at the point of the last
+	 * gradient evaluation. Needs {@link #setKeepCurvature(boolean)}.
+	 * 
+	 * @param v
+	 *            the vector, (numClasses - 1) x dim
+	 * @param out
+	 *            the array the product is written to
+	 */
+	void hessianVector(double[] v, double[] out) throws Exception {
+		numPasses++;
+		final double[] at = shift(v);
+		if (null == shardGrads) {
+			hessianVectorRange(at, 0, cls.length, out, margins);
+		} else {
+			ParallelUtil.runShards(cls.length, shardGrads.length,
+					new ParallelUtil.ShardTask() {
+						@Override
+						public void run(int shard, int from, int to) {
+							if (null == shardGrads[shard]
+									|| shardGrads[shard].length != at.length)
+								shardGrads[shard] = new double[at.length];
+							hessianVectorRange(at, from, to, shardGrads[shard],
+									shardMargins[shard]);
+						}
+					});
+			mergeShards(out);
+		}
+		centreGradient(out);
+
+		int nK = numClasses - 1;
+		for (int offset = 0; offset < nK; offset++)
+			for (int r = 1; r < dim; r++)
+				out[offset * dim + r] += 2 * ridge[r] * v[offset * dim + r];
+	}
+
+	/**
+	 * Hessian-vector product of the weighted negative log-likelihood of
+	 * instances [from, to). For instance i with probabilities p and margins
+	 * u_k = x_i.v_k, block k receives w_i p_k (u_k - sum_l p_l u_l) x_i.
+	 */
+	private void hessianVectorRange(double[] v, int from, int to,
+			double[] out, double[] u) {
+		if (numClasses == 2) {
+			hessianVectorBinary(v, from, to, out);
+			return;
+		}
+		int nK = numClasses - 1;
+		Arrays.fill(out, 0d);
+		for (int i = from; i < to; i++) {
+			int base = i * nK;
+			double mean = 0d;
+			for (int offset = 0; offset < nK; offset++) {
+				u[offset] = data.dot(i, v, offset * dim);
+				mean += probs[base + offset] * u[offset];
+			}
+			for (int offset = 0; offset < nK; offset++) {
+				double coef = weights[i] * probs[base + offset]
+						* (u[offset] - mean);
+				if (coef != 0d)
+					data.addRow(i, coef, out, offset * dim);
+			}
+		}
+	}
+
+	/**
+	 * Weighted negative log-likelihood of instances [from, to), without the
+	 * ridge penalty. If grad is not null, it is overwritten with the gradient
+	 * of the same quantity.
+	 */
+	private double evaluateRange(double[] x, int from, int to, double[] grad,
+			double[] margins) {
+		if (numClasses == 2)
+			return evaluateBinary(x, from, to, grad);
+		int nK = numClasses - 1;
+		double nll = 0;
+		if (null != grad)
+			Arrays.fill(grad, 0d);
+
+		for (int i = from; i < to; i++) {
+			double max = Double.NEGATIVE_INFINITY;
+			for (int offset = 0; offset < nK; offset++) {
+				double exp = data.dot(i, x, offset * dim);
+				margins[offset] = exp;
+				if (exp > max)
+					max = exp;
+			}
+
+			double denom = Math.exp(-max);
+			double num = cls[i] == nK ? -max : margins[cls[i]] - max;
+			for (int offset = 0; offset < nK; offset++) {
+				margins[offset] = Math.exp(margins[offset] - max);
+				denom += margins[offset];
+			}
+			nll -= weights[i] * (num - Math.log(denom)); // Weighted NLL
+
+			if (null == grad)
+				continue;
+			for (int offset = 0; offset < nK; offset++) {
+				double p = margins[offset] / denom;
+				if (null != probs)
+					probs[i * nK + offset] = p;
+				data.addRow(i, weights[i] * p, grad, offset * dim);
+			}
+			if (cls[i] != nK) // Not the last class
+				data.addRow(i, -weights[i], grad, cls[i] * dim);
+		}
+
+		return nll;
+	}
+
+	/**
+	 * evaluateRange for two classes. With margin z = x_i.w, class 0 has
+	 * probability sigmoid(z) and the loss of instance i is softplus(-z) for
+	 * class 0 and softplus(z) for class 1.
+	 */
+	private double evaluateBinary(double[] w, int from, int to, double[] grad) {
+		double nll = 0;
+		if (null != grad)
+			Arrays.fill(grad, 0d);
+
+		// Margins are taken a block at a time, so that the softplus and
+		// sigmoid of a whole block go through the vector kernels
+		double[] z = new double[BLOCK];
+		double[] loss = new double[BLOCK];
+		for (int start = from; start < to; start += BLOCK) {
+			int n = Math.min(BLOCK, to - start);
+			for (int b = 0; b < n; b++) {
+				z[b] = data.dot(start + b, w, 0);
+				loss[b] = cls[start + b] == 0 ? -z[b] : z[b];
+			}
+			VectorKernels.softplus(loss, loss, n);
+			for (int b = 0; b < n; b++)
+				nll += weights[start + b] * loss[b];
+
+			if (null == grad)
+				continue;
+			VectorKernels.sigmoid(z, z, n);
+			for (int b = 0; b < n; b++) {
+				int i = start + b;
+				double p = z[b];
+				if (null != probs)
+					probs[i] = p;
+				double coef = weights[i] * (cls[i] == 0 ? p - 1 : p);
+				if (coef != 0d)
+					data.addRow(i, coef, grad, 0);
+			}
+		}
+
+		return nll;
+	}
+
+	/**
+	 * hessianVectorRange for two classes: instance i adds
+	 * w_i p (1 - p) (x_i.v) x_i
+	 */
+	private void hessianVectorBinary(double[] v, int from, int to, double[] out) {
+		Arrays.fill(out, 0d);
+		for (int i = from; i < to; i++) {
+			double p = probs[i];
+			double coef = weights[i] * p * (1 - p) * data.dot(i, v, 0);
+			if (coef != 0d)
+				data.addRow(i, coef, out, 0);
+		}
+	}
+}
@@ -1,21 +1,33 @@
 package in.ac.iitb.cse.qh.classifiers;
 
 import in.ac.iitb.cse.qh.util.MetaConstants;
-
+import in.ac.iitb.cse.qh.util.VectorKernels;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import weka.classifiers.UpdateableClassifier;
 import weka.classifiers.functions.Logistic;
 import weka.core.Instance;
 import weka.core.Instances;
 import weka.core.Optimization;
+import weka.core.SparseInstance;
 import weka.core.Utils;
-import weka.filters.Filter;
-import weka.filters.unsupervised.attribute.NominalToBinary;
-import weka.filters.unsupervised.attribute.RemoveUseless;
-import weka.filters.unsupervised.attribute.ReplaceMissingValues;
 
-public class ModifiedLogistic extends Logistic {
+public class ModifiedLogistic extends Logistic implements
+		UpdateableClassifier {
 
 	private static final long serialVersionUID = 1L;
 	private static final Logger LOGGER = Logger
@@ -33,41 +45,116 @@ public class ModifiedLogistic extends Logistic {
 	private double[] params;
 	protected int m_numInstances;
 
-	/** An attribute filter */
-	private RemoveUseless m_AttFilter;
+	/** Number of threads the loss and gradient are evaluated with */
+	private int m_NumThreads = 1;
+
+	/** Magic number and version of the files written by saveModel */
+	public static final int MODEL_MAGIC = 0x4d4c4d31; // "MLM1"
+	public static final int MODEL_VERSION = 3;
+
+	/**
+	 * Standardised training data, replacing the row-per-array m_Data. Not
+	 * serialised; see {@link #releaseTrainingData()}
+	 */
+	protected transient FeatureMatrix m_Matrix;
+
+	/** Names of the predictor columns, or null if not known */
+	private String[] m_ColumnNames;
+
+	/** Whether to train on a sparse (CSR) copy of the data */
+	private boolean m_Sparse;
+
+	/** Whether to store dense training data in single precision */
+	private boolean m_FloatPrecision;
+
+	/** Quasi-Newton (BFGS) solver of weka.core.Optimization */
+	public static final int SOLVER_BFGS = 0;
+
+	/** Trust-region Newton solver using conjugate gradient */
+	public static final int SOLVER_TRUST_REGION = 1;
+
+	private int m_Solver = SOLVER_BFGS;
+
+	/**
+	 * L1 penalty of every weight but the intercept, in standardised units.
+	 * If positive, binary models are fitted by {@link CoordinateDescent} and
+	 * m_Solver is not used.
+	 */
+	private double m_L1Penalty;
+
+	/**
+	 * Maps the attributes into hashed columns, if not null; the model then
+	 * has one weight per bucket
+	 */
+	private FeatureHasher m_Hasher;
+
+	/** Iterations and passes over the data of the last build */
+	private int m_NumIterations;
+	private int m_NumDataPasses;
+
+	/** Whether a rebuild on the same data starts from the last solution */
+	private boolean m_WarmStart = true;
+
+	/** m_Par flattened class by class, for scoring rows of a FeatureMatrix */
+	private transient double[] m_Coefficients;
+
+	/** Scratch of scoreBatch(Instances), kept between calls */
+	private transient double[] m_ScoreV;
+	private transient double[] m_ScoreZ;
+	private transient double[] m_ScoreRow;
+	private transient FeatureHasher.HashedRow m_ScoreHashed;
+
+	/** Columns with a non-zero weight in a binary model, but the intercept */
+	private transient int[] m_NonZeroColumns;
+
+	/** Preprocessed training data, reused by rebuilds on the same data */
+	private transient PreprocessedData m_Preprocessed;
 
-	/** The filter used to make attributes numeric. */
-	private NominalToBinary m_NominalToBinary;
+	/** Training data m_WarmX was fitted to */
+	private transient PreprocessedData m_WarmData;
 
-	/** The filter used to get rid of missing values. */
-	private ReplaceMissingValues m_ReplaceMissingValues;
+	/** Last converged solution, in standardised units */
+	private transient double[] m_WarmX;
 
-	// private double[][] m_Data;
+	/** Approximation of the data seen so far for incremental updates */
+	private IncrementalState m_Incremental;
+
+	/** Newton steps an incremental update may take */
+	private int m_UpdateSteps = 5;
+
+	/** Largest predicted loss rise per unit weight an update may cause */
+	private double m_DriftThreshold = 1e-3;
+
+	/**
+	 * The Instances given to buildClassifier, never modified, and the
+	 * instances added by updates since, or null if there were none. A
+	 * rejected update retrains on both.
+	 */
+	private transient Instances m_History;
+	private transient Instances m_Appended;
 
 	private class OptEng extends Optimization {
-		private double[] weights;
+		private LogisticLoss loss;
 
-		/** Class labels of instances */
-		private int[] cls;
+		/** Point at which the cached objective and gradient were evaluated */
+		private double[] lastX;
 
-		/**
-		 * Set the weights of instances
-		 * 
-		 * @param w
-		 *            the weights to be set
-		 */
-		public void setWeights(double[] w) {
-			weights = w;
-		}
+		private double lastValue;
+
+		private double[] lastGrad;
+
+		/** Number of gradients handed out, one per quasi-Newton iteration */
+		private int numGradients;
 
 		/**
-		 * Set the class labels of instances
+		 * Set the loss to minimise
 		 * 
-		 * @param c
-		 *            the class labels to be set
+		 * @param l
+		 *            the loss over the training instances
 		 */
-		public void setClassLabels(int[] c) {
-			cls = c;
+		public void setLoss(LogisticLoss l) {
+			loss = l;
+			lastX = null;
 		}
 
 		@Override
@@ -76,132 +163,36 @@ public class ModifiedLogistic extends Logistic {
 			return null;
 		}
 
-		@Override
-		protected double[] evaluateGradient(double[] x) throws Exception {
-			// TODO Auto-generated method stub
-
-			// double[] gradient = new double[par.length];
-			// for (int i = 0; i < par.length; i++) {
-			// for (int j = 0; j < m_numInstances; j++) {
-			// gradient[i] += -m_Data[j][i]
-			// * (cls[j] - prob(par, m_Data[j], 1));
-			// }
-			// gradient[i] += d[i] * par[i];
-			// }
-			//
-			// return gradient;
-
-			double[] grad = new double[x.length];
-			int dim = m_NumPredictors + 1; // Number of variables per class
-
-			for (int i = 0; i < cls.length; i++) { // ith instance
-				double[] num = new double[m_NumClasses - 1]; // numerator of
-																// [-log(1+sum(exp))]'
-				int index;
-				for (int offset = 0; offset < m_NumClasses - 1; offset++) { // Which
-																			// part
-																			// of
-																			// x
-					double exp = 0.0;
-					index = offset * dim;
-					for (int j = 0; j < dim; j++)
-						exp += m_Data[i][j] * x[index + j];
-					num[offset] = exp;
-				}
-
-				double max = num[Utils.maxIndex(num)];
-				double denom = Math.exp(-max); // Denominator of
-												// [-log(1+sum(exp))]'
-				for (int offset = 0; offset < m_NumClasses - 1; offset++) {
-					num[offset] = Math.exp(num[offset] - max);
-					denom += num[offset];
-				}
-				Utils.normalize(num, denom);
-
-				// Update denominator of the gradient of -log(Posterior)
-				double firstTerm;
-				for (int offset = 0; offset < m_NumClasses - 1; offset++) { // Which
-																			// part
-																			// of
-																			// x
-					index = offset * dim;
-					firstTerm = weights[i] * num[offset];
-					for (int q = 0; q < dim; q++) {
-						grad[index + q] += firstTerm * m_Data[i][q];
-					}
-				}
-
-				if (cls[i] != m_NumClasses - 1) { // Not the last class
-					for (int p = 0; p < dim; p++) {
-						grad[cls[i] * dim + p] -= weights[i] * m_Data[i][p];
-					}
-				}
-			}
-
-			// Ridge: note that intercepts NOT included
-			for (int offset = 0; offset < m_NumClasses - 1; offset++) {
-				for (int r = 1; r < dim; r++)
-					grad[offset * dim + r] += 2 * d[r] * x[offset * dim + r];
+		/**
+		 * Evaluates the objective and the gradient at x in one pass over the
+		 * data, unless they are already cached for x. Optimization asks for
+		 * both at almost every point it visits.
+		 */
+		private void evaluate(double[] x) throws Exception {
+			if (null != lastX && Arrays.equals(x, lastX))
+				return;
+			if (null == lastX || lastX.length != x.length) {
+				lastX = new double[x.length];
+				lastGrad = new double[x.length];
 			}
+			lastValue = loss.evaluate(x, lastGrad);
+			System.arraycopy(x, 0, lastX, 0, x.length);
+		}
 
-			return grad;
-
+		@Override
+		protected double[] evaluateGradient(double[] x) throws Exception {
+			evaluate(x);
+			numGradients++;
+			// Optimization keeps the previous gradient around, so hand out a
+			// copy rather than the cached buffer
+			return lastGrad.clone();
 		}
 
 		@Override
 		protected double objectiveFunction(double[] x) throws Exception {
 			// sum w_i^2d_i + lossT(w)
-
-			// double result = 0d;
-			// for (int i = 0; i < par.length; i++) {
-			// result += par[i] * par[i] * d[i];
-			// }
-			//
-			// // System.out.println("result1=" + result);
-			//
-			// for (int i = 0; i < m_numInstances; i++) {
-			//
-			// double p = logprob(par, m_Data[i], cls[i]);
-			// result -= p;
-			// }
-			// // System.out.println("result2=" + result);
-			// return result;
-
-			double nll = 0; // -LogLikelihood
-			int dim = m_NumPredictors + 1; // Number of variables per class
-
-			for (int i = 0; i < cls.length; i++) { // ith instance
-
-				double[] exp = new double[m_NumClasses - 1];
-				int index;
-				for (int offset = 0; offset < m_NumClasses - 1; offset++) {
-					index = offset * dim;
-					for (int j = 0; j < dim; j++)
-						exp[offset] += m_Data[i][j] * x[index + j];
-				}
-				double max = exp[Utils.maxIndex(exp)];
-				double denom = Math.exp(-max);
-				double num;
-				if (cls[i] == m_NumClasses - 1) { // Class of this instance
-					num = -max;
-				} else {
-					num = exp[cls[i]] - max;
-				}
-				for (int offset = 0; offset < m_NumClasses - 1; offset++) {
-					denom += Math.exp(exp[offset] - max);
-				}
-
-				nll -= weights[i] * (num - Math.log(denom)); // Weighted NLL
-			}
-
-			// Ridge: note that intercepts NOT included
-			for (int offset = 0; offset < m_NumClasses - 1; offset++) {
-				for (int r = 1; r < dim; r++)
-					nll += d[r] * x[offset * dim + r] * x[offset * dim + r];
-			}
-
-			return nll;
-
+			evaluate(x);
+			return lastValue;
 		}
 
 	}
@@ -218,12 +209,11 @@ public class ModifiedLogistic extends Logistic {
 	public double[][] computeJacobian(int i) {
 		double[] x = params;
 		double[][] jac = new double[x.length][2];
+		double[] row = getData(i);
 
-		double der = 0d;
-
-		for (int j = 0; j < x.length; j++) {
-			der += x[j] * m_Data[i][j];
-		}
+		double der = 0;
+		for (int j = 0; j < x.length; j++)
+			der += row[j] * x[j];
 
 		der = Math.exp(-der);
 
@@ -231,8 +221,9 @@ public class ModifiedLogistic extends Logistic {
 		// System.out.println("DER: " + der);
 
 		for (int j = 0; j < x.length; j++) {
-			jac[j][0] = m_Data[i][j] * der;
-			jac[j][1] = m_Data[i][j] * (-der);
+			double v = row[j];
+			jac[j][0] = v * der;
+			jac[j][1] = v * (-der);
 			// System.out.println(jac[j][0] + ", " + jac[j][1]);
 		}
 
@@ -240,56 +231,42 @@ public class ModifiedLogistic extends Logistic {
 	}
 
 	public double[][] getHessian() {
-		double[] x = params;
-		double[][] hessian = new double[x.length][x.length];
+		return HessianBuilder.unpack(getPackedHessian(), params.length);
+	}
 
+	/**
+	 * Hessian of the training log loss at the current weights, in packed
+	 * lower-triangular storage (see {@link HessianBuilder#packedIndex})
+	 */
+	public double[] getPackedHessian() {
 		LOGGER.log(Level.FINE, "Hessian calculation started...");
-
-		for (int i = 0; i < x.length; i++) {
-			for (int j = 0; j < x.length; j++) {
-				hessian[i][j] = 0d;
-				for (int k = 0; k < m_Data.length; k++) {
-					double temp = 0d;
-					for (int l = 0; l < m_Data[k].length; l++) {
-						temp += x[l] * m_Data[k][l];
-					}
-					if (temp > MetaConstants.MAX_POWER)
-						temp = MetaConstants.MAX_POWER;
-					if (temp < -MetaConstants.MAX_POWER)
-						temp = -MetaConstants.MAX_POWER;
-					temp = Math.exp(-temp);
-					temp = (-temp) / ((1 + temp) * (1 + temp));
-
-					// if(temp == 0)
-					// System.out.println("\ntemp="+temp);
-					hessian[i][j] += m_Data[k][i] * m_Data[k][j] * temp;
-				}
-				hessian[i][j] = -hessian[i][j];
-			}
-		}
-
+		double[] hessian = new HessianBuilder(m_Matrix).buildPacked(params);
 		LOGGER.log(Level.FINE, "Hessian calculation finished!");
-
 		return hessian;
 	}
 
 	public double[][] getIndicator() {
-		double[] x = params;
-		double[][] B = new double[x.length][x.length];
+		double[] diag = getIndicatorDiagonal();
+		double[][] B = new double[diag.length][diag.length];
+		for (int i = 0; i < diag.length; i++)
+			B[i][i] = diag[i];
+		return B;
+	}
 
+	/**
+	 * Diagonal of {@link #getIndicator()}, which is zero elsewhere: w_i
+	 * exp(d_i), with d clamped to +-MAX_POWER
+	 */
+	public double[] getIndicatorDiagonal() {
+		double[] x = params;
+		double[] B = new double[x.length];
 		for (int i = 0; i < x.length; i++) {
-			for (int j = 0; j < x.length; j++) {
-				if (i != j)
-					B[i][j] = 0;
-				else {
-					// System.out.println("x: " + x[i] + " d: " + d[j]);
-					if (d[j] > MetaConstants.MAX_POWER)
-						d[j] = MetaConstants.MAX_POWER;
-					if (d[j] < -MetaConstants.MAX_POWER)
-						d[j] = -MetaConstants.MAX_POWER;
-					B[i][j] = x[i] * Math.exp(d[j]);
-				}
-			}
+			// System.out.println("x: " + x[i] + " d: " + d[i]);
+			if (d[i] > MetaConstants.MAX_POWER)
+				d[i] = MetaConstants.MAX_POWER;
+			if (d[i] < -MetaConstants.MAX_POWER)
+				d[i] = -MetaConstants.MAX_POWER;
+			B[i] = x[i] * Math.exp(d[i]);
 		}
 		return B;
 	}
@@ -377,6 +354,17 @@ public class ModifiedLogistic extends Logistic {
 		// m_NominalToBinary.input(instance);
 		// instance = m_NominalToBinary.output();
 
+		if (null != m_Hasher) {
+			FeatureHasher.HashedRow row = new FeatureHasher.HashedRow();
+			m_Hasher.hash(instance, row);
+			return distributionForSparse(row.getColumns(), row.getValues(),
+					row.size());
+		}
+		if (instance instanceof SparseInstance)
+			return distributionForSparseInstance(instance);
+		if (m_NumClasses == 2)
+			return distributionForBinaryInstance(instance);
+
 		// Extract the predictor columns into an array
 		double[] instDat = new double[m_NumPredictors + 1];
 		int j = 1;
@@ -402,6 +390,288 @@ public class ModifiedLogistic extends Logistic {
 		return distribution;
 	}
 
+	/**
+	 * Computes the distribution of a binary model, reading only the values of
+	 * the attributes with a non-zero weight
+	 */
+	private double[] distributionForBinaryInstance(Instance instance) {
+		double z = m_Par[0][0];
+		for (int col : nonZeroColumns()) {
+			int k = col - 1 < m_ClassIndex ? col - 1 : col;
+			z += m_Par[col][0] * instance.value(k);
+		}
+		return probability(new double[] { z, 0d });
+	}
+
+	private int[] nonZeroColumns() {
+		if (null == m_NonZeroColumns) {
+			int[] cols = new int[getNumNonZeroWeights()];
+			for (int k = 1, n = 0; k < m_Par.length; k++)
+				if (m_Par[k][0] != 0d)
+					cols[n++] = k;
+			m_NonZeroColumns = cols;
+		}
+		return m_NonZeroColumns;
+	}
+
+	/**
+	 * Number of weights that are not zero, over all classes and without the
+	 * intercepts. Below the number of predictors only if the model was
+	 * trained with an L1 penalty, see {@link #setL1Penalty(double)}.
+	 */
+	public int getNumNonZeroWeights() {
+		int n = 0;
+		if (null != m_Par)
+			for (int k = 1; k < m_Par.length; k++)
+				for (double w : m_Par[k])
+					if (w != 0d)
+						n++;
+		return n;
+	}
+
+	/**
+	 * Computes the distribution for a sparse instance, visiting only its
+	 * non-zero values
+	 */
+	private double[] distributionForSparseInstance(Instance instance) {
+		double[] v = new double[m_NumClasses];
+		for (int j = 0; j < m_NumClasses - 1; j++)
+			v[j] = m_Par[0][j];
+		for (int p = 0; p < instance.numValues(); p++) {
+			int k = instance.index(p);
+			if (k == m_ClassIndex)
+				continue;
+			int col = k < m_ClassIndex ? k + 1 : k;
+			if (col > m_NumPredictors)
+				continue;
+			double value = instance.valueSparse(p);
+			for (int j = 0; j < m_NumClasses - 1; j++)
+				v[j] += m_Par[col][j] * value;
+		}
+		return probability(v);
+	}
+
+	/**
+	 * Computes the distribution for an instance given in sparse form
+	 * 
+	 * @param columns
+	 *            predictor columns of the non-zero values, numbered from 1 as
+	 *            in {@link #getWparameters()}
+	 * @param values
+	 *            the non-zero values
+	 * @param numValues
+	 *            number of non-zero values
+	 * @return the distribution
+	 */
+	public double[] distributionForSparse(int[] columns, double[] values,
+			int numValues) {
+		double[] v = new double[m_NumClasses];
+		for (int j = 0; j < m_NumClasses - 1; j++) {
+			v[j] = m_Par[0][j];
+			for (int p = 0; p < numValues; p++)
+				v[j] += m_Par[columns[p]][j] * values[p];
+		}
+		return probability(v);
+	}
+
+	/**
+	 * Computes the distribution for a row of data holding instances in
+	 * attribute units, laid out like the training data: 1 in column 0, then
+	 * the predictors in attribute order without the class. The rows may be
+	 * held in single precision, see {@link FloatDesignMatrix}.
+	 */
+	public double[] distributionForRow(FeatureMatrix data, int row) {
+		double[] coef = flatCoefficients();
+		double[] v = new double[m_NumClasses];
+		for (int j = 0; j < m_NumClasses - 1; j++)
+			v[j] = data.dot(row, coef, j * (m_NumPredictors + 1));
+		return probability(v);
+	}
+
+	/**
+	 * Scores a whole block of instances without allocating: every instance is
+	 * read in place, dense ones into a row buffer and hashed ones into a
+	 * reused {@link FeatureHasher.HashedRow}, and the scratch space is kept
+	 * between calls, growing only for a larger batch. The results equal those
+	 * of distributionForInstance, up to rounding when the vector kernels are
+	 * in use. Not safe to call from several threads at once.
+	 * 
+	 * @param data
+	 *            the instances
+	 * @param prob
+	 *            receives the probability of class 1 of every instance
+	 * @param margins
+	 *            receives the log-odds of class 1 of every instance, or null
+	 */
+	public void scoreBatch(Instances data, double[] prob, double[] margins) {
+		int n = data.numInstances();
+		if (null == m_ScoreV || m_ScoreV.length != m_NumClasses)
+			m_ScoreV = new double[m_NumClasses];
+		double[] v = m_ScoreV;
+		// Binary margins are gathered so that the sigmoid of the whole batch
+		// goes through the vector kernels
+		double[] z = null;
+		if (m_NumClasses == 2) {
+			if (null == m_ScoreZ || m_ScoreZ.length < n)
+				m_ScoreZ = new double[n];
+			z = m_ScoreZ;
+		}
+		for (int i = 0; i < n; i++) {
+			logPosteriors(data.instance(i), v);
+			if (null != z)
+				z[i] = v[0];
+			else
+				score(v, i, prob, margins);
+		}
+		if (null != z)
+			scoreBinary(z, n, prob, margins);
+	}
+
+	/**
+	 * Writes the unnormalised log-posteriors of the first numClasses - 1
+	 * classes of an instance into v, using only the scratch space of
+	 * scoreBatch
+	 */
+	private void logPosteriors(Instance instance, double[] v) {
+		int nK = m_NumClasses - 1;
+		if (null != m_Hasher) {
+			if (null == m_ScoreHashed)
+				m_ScoreHashed = new FeatureHasher.HashedRow();
+			FeatureHasher.HashedRow row = m_ScoreHashed;
+			m_Hasher.hash(instance, row);
+			int[] columns = row.getColumns();
+			double[] values = row.getValues();
+			for (int j = 0; j < nK; j++) {
+				v[j] = m_Par[0][j];
+				for (int p = 0; p < row.size(); p++)
+					v[j] += m_Par[columns[p]][j] * values[p];
+			}
+			return;
+		}
+		if (instance instanceof SparseInstance) {
+			for (int j = 0; j < nK; j++)
+				v[j] = m_Par[0][j];
+			for (int p = 0; p < instance.numValues(); p++) {
+				int k = instance.index(p);
+				if (k == m_ClassIndex)
+					continue;
+				int col = k < m_ClassIndex ? k + 1 : k;
+				if (col > m_NumPredictors)
+					continue;
+				double value = instance.valueSparse(p);
+				for (int j = 0; j < nK; j++)
+					v[j] += m_Par[col][j] * value;
+			}
+			return;
+		}
+		int dim = m_NumPredictors + 1;
+		if (null == m_ScoreRow || m_ScoreRow.length != dim)
+			m_ScoreRow = new double[dim];
+		double[] row = m_ScoreRow;
+		row[0] = 1;
+		for (int k = 0, col = 1; k <= m_NumPredictors; k++)
+			if (k != m_ClassIndex)
+				row[col++] = instance.value(k);
+		double[] coef = flatCoefficients();
+		for (int j = 0; j < nK; j++)
+			v[j] = VectorKernels.dot(row, 0, coef, j * dim, dim);
+	}
+
+	/**
+	 * Scores every row of a matrix laid out as for
+	 * {@link #distributionForRow}, without allocating per row
+	 * 
+	 * @param rows
+	 *            the instances in attribute units, e.g. a
+	 *            {@link FloatDesignMatrix}
+	 * @param prob
+	 *            receives the probability of class 1 of every row
+	 * @param margins
+	 *            receives the log-odds of class 1 of every row, or null
+	 */
+	public void scoreBatch(FeatureMatrix rows, double[] prob, double[] margins) {
+		double[] coef = flatCoefficients();
+		if (m_NumClasses == 2) {
+			double[] z = new double[rows.numRows()];
+			for (int i = 0; i < z.length; i++)
+				z[i] = rows.dot(i, coef, 0);
+			scoreBinary(z, z.length, prob, margins);
+			return;
+		}
+		double[] v = new double[m_NumClasses];
+		for (int i = 0; i < rows.numRows(); i++) {
+			for (int j = 0; j < m_NumClasses - 1; j++)
+				v[j] = rows.dot(i, coef, j * (m_NumPredictors + 1));
+			score(v, i, prob, margins);
+		}
+	}
+
+	/**
+	 * {@link #score} of a whole binary batch from the margins z of class 0,
+	 * which are overwritten
+	 */
+	private static void scoreBinary(double[] z, int n, double[] prob,
+			double[] margins) {
+		for (int i = 0; i < n; i++)
+			z[i] = -z[i];
+		VectorKernels.sigmoid(z, prob, n);
+		for (int i = 0; i < n; i++)
+			prob[i] = floor(prob[i]);
+		if (null != margins)
+			System.arraycopy(z, 0, margins, 0, n);
+	}
+
+	/**
+	 * Probability and log-odds of class 1 from the log-posteriors v, as
+	 * {@link #probability} computes them
+	 */
+	private void score(double[] v, int i, double[] prob, double[] margins) {
+		if (m_NumClasses == 2) {
+			prob[i] = floor(1 / (1 + Math.exp(v[0])));
+			if (null != margins)
+				margins[i] = -v[0];
+			return;
+		}
+		int nK = m_NumClasses - 1;
+		v[nK] = 0;
+		double sum = 0;
+		for (int n = 0; n < nK; n++)
+			sum += Math.exp(v[n] - v[1]);
+		double p = 1 / (sum + Math.exp(-v[1]));
+		if (p == 0)
+			p = 1.0e-20;
+		prob[i] = p;
+		if (null != margins)
+			margins[i] = Math.log(p / (1 - p));
+	}
+
+	/**
+	 * Probability of class 0 of a binary model from the log-odds written by
+	 * scoreBatch, equal to the first entry of distributionForInstance
+	 */
+	public static double negativeProbability(double margin) {
+		return floor(1 / (1 + Math.exp(margin)));
+	}
+
+	/**
+	 * Keeps a probability away from 0
+	 */
+	private static double floor(double p) {
+		return p == 0 ? 1.0e-20 : p;
+	}
+
+	private double[] flatCoefficients() {
+		if (null == m_Coefficients) {
+			int dim = m_NumPredictors + 1;
+			double[] coef = new double[dim * (m_NumClasses - 1)];
+			for (int j = 0; j < m_NumClasses - 1; j++)
+				for (int k = 0; k < dim; k++)
+					coef[j * dim + k] = m_Par[k][j];
+			m_Coefficients = coef;
+		}
+		return m_Coefficients;
+	}
+
 	/**
 	 * Compute the posterior distribution using optimized parameter values and
 	 * the testing instance.
@@ -411,7 +681,14 @@ public class ModifiedLogistic extends Logistic {
 	 * @return the posterior probability distribution
 	 */
 	private double[] evaluateProbability(double[] data) {
-		double[] prob = new double[m_NumClasses], v = new double[m_NumClasses];
+		double[] v = new double[m_NumClasses];
+		if (m_NumClasses == 2) {
+			double z = 0;
+			for (int k = 0; k <= m_NumPredictors; k++)
+				z += m_Par[k][0] * data[k];
+			v[0] = z;
+			return probability(v);
+		}
 
 		// Log-posterior before normalizing
 		for (int j = 0; j < m_NumClasses - 1; j++) {
@@ -419,8 +696,23 @@ public class ModifiedLogistic extends Logistic {
 				v[j] += m_Par[k][j] * data[k];
 			}
 		}
+		return probability(v);
+	}
+
+	/**
+	 * Posterior distribution from the log-posteriors v of the first
+	 * m_NumClasses - 1 classes; the last entry of v is overwritten
+	 */
+	private double[] probability(double[] v) {
+		double[] prob = new double[m_NumClasses];
 		v[m_NumClasses - 1] = 0;
 
+		if (m_NumClasses == 2) {
+			prob[0] = floor(1 / (1 + Math.exp(-v[0])));
+			prob[1] = floor(1 / (1 + Math.exp(v[0])));
+			return prob;
+		}
+
 		// Do so to avoid scaling problems
 		for (int m = 0; m < m_NumClasses; m++) {
 			double sum = 0;
@@ -453,84 +745,124 @@ public class ModifiedLogistic extends Logistic {
 	@Override
 	public void buildClassifier(Instances train) throws Exception {
 		LOGGER.log(Level.FINE, "build classifier...");
-		// remove instances with missing class
-		train = new Instances(train);
-		train.deleteWithMissingClass();
-
-		// Replace missing values
-		m_ReplaceMissingValues = new ReplaceMissingValues();
-		m_ReplaceMissingValues.setInputFormat(train);
-		train = Filter.useFilter(train, m_ReplaceMissingValues);
+		m_History = train;
+		m_Appended = null;
+		long fingerprint = PreprocessedData.fingerprint(train);
+		boolean hashed = null != m_Hasher;
+		PreprocessedData data = m_Preprocessed;
+		if (null != data
+				&& data.matches(train, fingerprint, m_Sparse || hashed,
+						m_FloatPrecision && !hashed, m_Hasher))
+			LOGGER.log(Level.FINE, "Reusing the preprocessed training data");
+		else if (hashed)
+			data = preprocessHashed(train, fingerprint);
+		else
+			data = preprocess(train, fingerprint);
+		train(data);
+	}
 
-		// Remove useless attributes
-		// m_AttFilter = new RemoveUseless();
-		// m_AttFilter.setInputFormat(train);
-		// train = Filter.useFilter(train, m_AttFilter);
+	/**
+	 * Hashes the training data into a sparse matrix with one column per
+	 * bucket of m_Hasher and standardises it
+	 */
+	private PreprocessedData preprocessHashed(Instances source,
+			long fingerprint) throws Exception {
+		int n = InstanceConverter.countWithClass(source);
+		SparseDesignMatrix matrix = new SparseDesignMatrix(
+				m_Hasher.numColumns(), n, 16 * n);
+		int[] classes = new int[n];
+		double[] weights = new double[n];
+		FeatureHasher.HashedRow row = new FeatureHasher.HashedRow();
+		for (int i = 0, r = 0; i < source.numInstances(); i++) {
+			Instance instance = source.instance(i);
+			if (instance.classIsMissing())
+				continue;
+			m_Hasher.hash(instance, row);
+			for (int p = 0; p < row.size(); p++)
+				matrix.add(row.getColumns()[p], row.getValues()[p]);
+			matrix.endRow();
+			classes[r] = (int) instance.classValue();
+			weights[r++] = instance.weight();
+		}
+		return preprocessSparse(source, fingerprint, m_Hasher, matrix,
+				classes, weights, source.numClasses(), source.classIndex());
+	}
 
-		// Transform attributes
-		m_NominalToBinary = new NominalToBinary();
-		m_NominalToBinary.setInputFormat(train);
-		train = Filter.useFilter(train, m_NominalToBinary);
+	/**
+	 * Extracts, imputes and standardises the training data
+	 */
+	private PreprocessedData preprocess(Instances source, long fingerprint)
+			throws Exception {
+		// Missing values are replaced and nominal attributes made binary
+		// while the data is extracted, without copying the Instances
+		InstanceConverter converter = new InstanceConverter(source);
 
 		// Save the structure for printing the model
 		// m_structure = new Instances(train, 0);
 
 		// Extract data
-		m_ClassIndex = train.classIndex();
-		m_NumClasses = train.numClasses();
-		m_numInstances = train.numInstances();
+		m_ClassIndex = converter.classIndex();
+		m_NumClasses = source.numClasses();
 
 		int nK = m_NumClasses - 1; // Only K-1 class labels needed
-		int nR = m_NumPredictors = train.numAttributes() - 1;
-		int nC = train.numInstances();
-
-		m_Data = new double[nC][nR + 1]; // Data values
+		int nR = m_NumPredictors = converter.numColumns() - 1;
+		int nC = InstanceConverter.countWithClass(source);
+		m_numInstances = nC;
+
+		m_Data = null;
+		boolean sparse = m_Sparse
+				|| (source.numInstances() > 0 && source.instance(0) instanceof SparseInstance);
+		DesignMatrix dense = null;
+		FloatDesignMatrix single = null;
+		SparseDesignMatrix csr = null;
+		double[] instDat = null;
+		if (sparse)
+			m_Matrix = csr = new SparseDesignMatrix(nR + 1, nC, nC);
+		else if (m_FloatPrecision)
+			m_Matrix = single = new FloatDesignMatrix(nC, nR + 1);
+		else
+			m_Matrix = dense = new DesignMatrix(nC, nR + 1); // Data values
+		if (!sparse)
+			instDat = new double[nR + 1];
 		int[] Y = new int[nC]; // Class labels
 		double[] xMean = new double[nR + 1]; // Attribute means
 		double[] xSD = new double[nR + 1]; // Attribute stddev's
 		double[] sY = new double[nK + 1]; // Number of classes
 		double[] weights = new double[nC]; // Weights of instances
 		double totWeights = 0; // Total weights of the instances
-		m_Par = new double[nR + 1][nK]; // Optimized parameter values
 
-		for (int i = 0; i < nC; i++) {
+		for (int n = 0, i = 0; n < source.numInstances(); n++) {
 			// initialize X[][]
-			Instance current = train.instance(i);
+			Instance current = source.instance(n);
+			if (current.classIsMissing())
+				continue;
 			Y[i] = (int) current.classValue(); // Class value starts from 0
 			weights[i] = current.weight(); // Dealing with weights
 			totWeights += weights[i];
 
-			m_Data[i][0] = 1;
-			int j = 1;
-			for (int k = 0; k <= nR; k++) {
-				if (k != m_ClassIndex) {
-					double x = current.value(k);
-					m_Data[i][j] = x;
-					xMean[j] += weights[i] * x;
-					xSD[j] += weights[i] * x * x;
-					j++;
-				}
+			if (sparse) {
+				converter.convert(current, csr);
+			} else {
+				converter.convert(current, instDat);
+				if (null != single)
+					single.setRow(i, instDat);
+				else
+					dense.setRow(i, instDat);
 			}
 
 			// Class count
 			sY[Y[i]]++;
+			i++;
 		}
 
+		double[] fill = converter.getFillValues(totWeights);
+		converter.getSums(fill, xMean, xSD);
+
 		if ((totWeights <= 1) && (nC > 1))
 			throw new Exception(
 					"Sum of weights of instances less than 1, please reweight!");
 
-		xMean[0] = 0; // why?
-		xSD[0] = 1; // why?
-		for (int j = 1; j <= nR; j++) {
-			xMean[j] = xMean[j] / totWeights;
-			if (totWeights > 1)
-				xSD[j] = Math.sqrt(Math.abs(xSD[j] - totWeights * xMean[j]
-						* xMean[j])
-						/ (totWeights - 1));
-			else
-				xSD[j] = 0;
-		}
+		finishMoments(xMean, xSD, totWeights);
 
 		if (m_Debug) {
 			// Output stats about input data
@@ -547,15 +879,191 @@ public class ModifiedLogistic extends Logistic {
 		}
 
 		// Normalise input data
-		for (int i = 0; i < nC; i++) {
-			// System.out.println();
-			for (int j = 0; j <= nR; j++) {
-				if (xSD[j] != 0) {
-					m_Data[i][j] = (m_Data[i][j] - xMean[j]) / xSD[j];
-					// System.out.print(m_Data[i][j]+" ");
+		// replacing missing values on the way
+		if (sparse) {
+			double[] values = csr.getValues();
+			int[] columns = csr.getColumns();
+			for (int p = 0; p < csr.numNonZero(); p++)
+				if (Double.isNaN(values[p]))
+					values[p] = fill[columns[p]];
+			scaleSparse(csr, xMean, xSD);
+		} else if (null != single) {
+			float[] data = single.getValues();
+			for (int i = 0; i < nC; i++) {
+				int off = single.rowOffset(i);
+				for (int j = 0; j <= nR; j++) {
+					if (Float.isNaN(data[off + j]))
+						data[off + j] = (float) fill[j];
+					if (xSD[j] != 0)
+						data[off + j] = (float) ((data[off + j] - xMean[j])
+								/ xSD[j]);
 				}
 			}
+		} else {
+			double[] data = dense.getValues();
+			for (int i = 0; i < nC; i++) {
+				// System.out.println();
+				int row = dense.rowOffset(i);
+				for (int j = 0; j <= nR; j++) {
+					if (Double.isNaN(data[row + j]))
+						data[row + j] = fill[j];
+					if (xSD[j] != 0) {
+						data[row + j] = (data[row + j] - xMean[j]) / xSD[j];
+						// System.out.print(data[row + j]+" ");
+					}
+				}
+			}
+		}
+
+		return new PreprocessedData(source, fingerprint, m_Sparse,
+				m_FloatPrecision, null, m_Matrix, Y, weights, sY, xMean, xSD,
+				m_ClassIndex, m_NumClasses, converter.columnNames(source),
+				fill);
+	}
+
+	/**
+	 * Trains on data that is already in CSR form, without going through
+	 * Instances. The class is taken to be the last attribute, so instances
+	 * scored later must have their predictors in the same order as the columns
+	 * of data, followed by the class.
+	 * 
+	 * @param data
+	 *            the predictors; column 0 is the intercept. Its column scale
+	 *            is set to standardise it.
+	 * @param classes
+	 *            class of every row, from 0 to numClasses - 1
+	 * @param weights
+	 *            weight of every row
+	 * @param numClasses
+	 *            number of classes
+	 * @throws Exception
+	 *             if the classifier can't be built successfully
+	 */
+	public void buildClassifier(SparseDesignMatrix data, int[] classes,
+			double[] weights, int numClasses) throws Exception {
+		m_History = null; // rejected updates cannot retrain on Instances
+		m_Appended = null;
+		long fingerprint = PreprocessedData.fingerprint(data, numClasses);
+		PreprocessedData cached = m_Preprocessed;
+		if (null != cached && cached.matches(data, fingerprint, true, false, null)
+				&& cached.classes == classes && cached.weights == weights) {
+			LOGGER.log(Level.FINE, "Reusing the preprocessed training data");
+			train(cached);
+			return;
+		}
+
+		train(preprocessSparse(data, fingerprint, null, data, classes,
+				weights, numClasses, data.numColumns() - 1));
+	}
+
+	/**
+	 * Standardises training data in CSR form through its column scale
+	 * 
+	 * @param hasher
+	 *            the hasher whose buckets are the columns of data, or null
+	 */
+	private PreprocessedData preprocessSparse(Object key, long fingerprint,
+			FeatureHasher hasher, SparseDesignMatrix data, int[] classes, double[] weights,
+			int numClasses, int classIndex) throws Exception {
+		int nR = data.numColumns() - 1;
+		double[] xMean = new double[nR + 1];
+		double[] xSD = new double[nR + 1];
+		double[] sY = new double[numClasses];
+		double totWeights = 0;
+		int[] columns = data.getColumns();
+		double[] values = data.getValues();
+		for (int i = 0; i < data.numRows(); i++) {
+			totWeights += weights[i];
+			sY[classes[i]]++;
+			for (int p = data.rowStart(i); p < data.rowEnd(i); p++) {
+				xMean[columns[p]] += weights[i] * values[p];
+				xSD[columns[p]] += weights[i] * values[p] * values[p];
+			}
+		}
+		if ((totWeights <= 1) && (data.numRows() > 1))
+			throw new Exception(
+					"Sum of weights of instances less than 1, please reweight!");
+		finishMoments(xMean, xSD, totWeights);
+		scaleSparse(data, xMean, xSD);
+		return new PreprocessedData(key, fingerprint, true, false, hasher,
+				data, classes, weights, sY, xMean, xSD, classIndex, numClasses,
+				null, null);
+	}
+
+	/**
+	 * Fits to preprocessed training data, starting from the last solution if
+	 * that was fitted to the same data
+	 */
+	private void train(PreprocessedData data) throws Exception {
+		m_ClassIndex = data.classIndex;
+		m_NumClasses = data.numClasses;
+		m_NumPredictors = data.matrix.numColumns() - 1;
+		m_numInstances = data.numInstances();
+		m_Data = null;
+		m_Matrix = data.matrix;
+		m_ColumnNames = data.columnNames;
+		m_Preprocessed = data;
+		m_Incremental = null;
+		boolean warm = m_WarmStart && null != m_WarmX && data == m_WarmData;
+		fit(data.classes, data.weights, data.classCounts, data.xMean,
+				data.xSD, warm);
+		m_WarmData = data;
+	}
+
+	/**
+	 * Turns weighted sums and sums of squares into means and standard
+	 * deviations. Column 0 is the intercept.
+	 */
+	static void finishMoments(double[] xMean, double[] xSD,
+			double totWeights) {
+		xMean[0] = 0; // why?
+		xSD[0] = 1; // why?
+		for (int j = 1; j < xMean.length; j++) {
+			xMean[j] = xMean[j] / totWeights;
+			if (totWeights > 1)
+				xSD[j] = Math.sqrt(Math.abs(xSD[j] - totWeights * xMean[j]
+						* xMean[j])
+						/ (totWeights - 1));
+			else
+				xSD[j] = 0;
 		}
+	}
+
+	/**
+	 * Standardises sparse data by setting its column scale and centre.
+	 * Centring the stored values would fill in the zeros, so the centre is
+	 * only recorded and folded into the intercept by the loss and the
+	 * Hessian (see {@link SparseDesignMatrix}): the weights, also of a
+	 * truncated fit, and the Hessian are those of the dense path. Both
+	 * replace any earlier ones, so the same data can be trained on again.
+	 */
+	private static void scaleSparse(SparseDesignMatrix data, double[] xMean,
+			double[] xSD) {
+		double[] scale = new double[xSD.length];
+		double[] centre = new double[xSD.length];
+		for (int j = 0; j < xSD.length; j++) {
+			scale[j] = xSD[j] != 0 ? 1 / xSD[j] : 1;
+			// Columns without spread are left as they are, as in the dense
+			// path
+			centre[j] = xSD[j] != 0 ? xMean[j] / xSD[j] : 0;
+		}
+		data.setColumnScale(scale);
+		data.setColumnCentre(centre);
+	}
+
+	/**
+	 * Fits the weights to the standardised data in m_Matrix and converts them
+	 * back to attribute units using the means and standard deviations the
+	 * data was standardised with
+	 * 
+	 * @param warm
+	 *            whether to start from the last solution instead of the null
+	 *            model
+	 */
+	private void fit(int[] Y, double[] weights, double[] sY, double[] xMean,
+			double[] xSD, boolean warm) throws Exception {
+		int nK = m_NumClasses - 1;
+		int nR = m_NumPredictors;
 
 		if (null == d) {
 			LOGGER.log(Level.INFO, "No hyperparameters... assuming default");
@@ -584,15 +1092,99 @@ public class ModifiedLogistic extends Logistic {
 		}
 
 		// Warm Start
-		// if (null != params)
-		// for (int q = 1; q <= nR; q++) {
-		// x[q] = params[q];
+		if (warm && m_WarmX.length == x.length) {
+			LOGGER.log(Level.FINE, "Warm start from the last solution");
+			System.arraycopy(m_WarmX, 0, x, 0, x.length);
+		}
+
+		if (m_L1Penalty > 0) {
+			if (m_NumClasses != 2)
+				throw new Exception(
+						"The L1 penalty is only supported for two classes");
+			x = minimizeCoordinateDescent(Y, weights, x);
+		} else {
+			LogisticLoss loss = new LogisticLoss(m_Matrix, Y, weights, d,
+					m_NumClasses, nR + 1);
+			loss.setNumShards(m_NumThreads);
+			if (m_Solver == SOLVER_TRUST_REGION)
+				x = minimizeTrustRegion(loss, x);
+			else
+				x = minimizeBFGS(loss, x, b);
+			m_NumDataPasses = loss.getNumPasses();
+		}
+		LOGGER.log(Level.FINE, "Converged in " + m_NumIterations
+				+ " iterations, " + m_NumDataPasses + " passes over the data");
+		m_WarmX = x.clone();
+
+		// Don't need data matrix anymore
+		// m_Data = null;
+		// System.out.println("Printing weights: ");
+		// for (int i = 0; i <= nR; i++) {
+		// System.out.println(x[i]);
 		// }
 
+		/*
+		 * double mod2 = 0d; for (int i = 0; i <= nR; i++) { mod2 += x[i] *
+		 * x[i]; } for (int i = 0; i <= nR; i++) { x[i] /= Math.sqrt(mod2); }
+		 * System.out.println("||w||^2=" + mod2);
+		 */
+		setCoefficients(x, xMean, xSD);
+	}
+
+	/**
+	 * Sets m_Par and params from weights x fitted to standardised data
+	 */
+	private void setCoefficients(double[] x, double[] xMean, double[] xSD) {
+		int nK = m_NumClasses - 1;
+		int nR = m_NumPredictors;
+		m_Par = new double[nR + 1][nK]; // Optimized parameter values
+		m_Coefficients = null;
+		m_NonZeroColumns = null;
+		// Convert coefficients back to non-normalized attribute units
+		for (int i = 0; i < nK; i++) {
+			m_Par[0][i] = x[i * (nR + 1)];
+			for (int j = 1; j <= nR; j++) {
+				m_Par[j][i] = x[i * (nR + 1) + j];
+				if (xSD[j] != 0) {
+					m_Par[j][i] /= xSD[j];
+					m_Par[0][i] -= m_Par[j][i] * xMean[j];
+				}
+			}
+		}
+		params = new double[m_Par.length];
+		for (int i = 0; i < params.length; i++)
+			params[i] = m_Par[i][0];
+	}
+
+	/**
+	 * Installs weights fitted elsewhere, by {@link StreamingLogisticTrainer},
+	 * to data with the given class index. No training data is kept.
+	 * 
+	 * @param x
+	 *            the weights, fitted to data standardised with xMean and xSD
+	 */
+	void setModel(int numClasses, int classIndex, int numInstances,
+			double[] x, double[] xMean, double[] xSD, double logLikelihood) {
+		m_NumClasses = numClasses;
+		m_NumPredictors = xMean.length - 1;
+		m_ClassIndex = classIndex;
+		m_numInstances = numInstances;
+		m_Data = null;
+		m_Matrix = null;
+		m_ColumnNames = null;
+		m_LL = logLikelihood;
+		m_WarmX = null;
+		m_WarmData = null;
+		m_Preprocessed = null;
+		m_Incremental = null;
+		setCoefficients(x, xMean, xSD);
+	}
+
+	private double[] minimizeBFGS(LogisticLoss loss, double[] x, double[][] b)
+			throws Exception {
 		OptEng opt = new OptEng();
 		opt.setDebug(m_Debug);
-		opt.setWeights(weights);
-		opt.setClassLabels(Y);
+		opt.setLoss(loss);
 
 		// System.out.println();
 
@@ -623,33 +1215,47 @@ public class ModifiedLogistic extends Logistic {
 		}
 
 		m_LL = -opt.getMinFunction(); // Log-likelihood
+		m_NumIterations = opt.numGradients;
+		return x;
+	}
 
-		// Don't need data matrix anymore
-		// m_Data = null;
-		// System.out.println("Printing weights: ");
-		// for (int i = 0; i <= nR; i++) {
-		// System.out.println(x[i]);
-		// }
+	private double[] minimizeTrustRegion(LogisticLoss loss, double[] x)
+			throws Exception {
+		TrustRegionNewton tron = new TrustRegionNewton(loss);
+		if (m_MaxIts != -1)
+			tron.setMaxIterations(m_MaxIts);
+		tron.minimize(x);
+		m_LL = -tron.getMinFunction(); // Log-likelihood
+		m_NumIterations = tron.getNumIterations();
+		return x;
+	}
 
-		/*
-		 * double mod2 = 0d; for (int i = 0; i <= nR; i++) { mod2 += x[i] *
-		 * x[i]; } for (int i = 0; i <= nR; i++) { x[i] /= Math.sqrt(mod2); }
-		 * System.out.println("||w||^2=" + mod2);
-		 */
-		// Convert coefficients back to non-normalized attribute units
-		for (int i = 0; i < nK; i++) {
-			m_Par[0][i] = x[i * (nR + 1)];
-			for (int j = 1; j <= nR; j++) {
-				m_Par[j][i] = x[i * (nR + 1) + j];
-				if (xSD[j] != 0) {
-					m_Par[j][i] /= xSD[j];
-					m_Par[0][i] -= m_Par[j][i] * xMean[j];
-				}
-			}
+	/**
+	 * Fits a binary model with the L1 penalty by coordinate descent.
+	 * m_NumDataPasses counts its cycles, most of which only visit the
+	 * columns of the active set. Sparse data is fitted uncentred, with the
+	 * intercept shifted before and after: the optimum is the same, as only
+	 * the unpenalised intercept differs, but a truncated fit can stop at
+	 * different weights than on dense data.
+	 */
+	private double[] minimizeCoordinateDescent(int[] Y, double[] weights,
+			double[] x) {
+		CoordinateDescent cd = new CoordinateDescent(
+				m_Preprocessed.getColumns(), Y, weights, d, m_L1Penalty);
+		if (m_MaxIts != -1)
+			cd.setMaxIterations(m_MaxIts);
+		SparseDesignMatrix sparse = null;
+		if (m_Matrix instanceof SparseDesignMatrix) {
+			sparse = (SparseDesignMatrix) m_Matrix;
+			sparse.shiftIntercept(x, 0);
 		}
-		params = new double[m_Par.length];
-		for (int i = 0; i < params.length; i++)
-			params[i] = m_Par[i][0];
+		cd.minimize(x);
+		if (null != sparse)
+			x[0] += sparse.centreDot(x, 0);
+		m_LL = -cd.getMinFunction(); // Log-likelihood
+		m_NumIterations = cd.getNumIterations();
+		m_NumDataPasses = cd.getNumCycles();
+		return x;
 	}
 
 	public static void main(String[] args) {
@@ -657,9 +1263,520 @@ public class ModifiedLogistic extends Logistic {
 
 	}
 
+	/**
+	 * A row of the standardised training data; sparse rows are centred
+	 */
 	public double[] getData(int index) {
-		// System.out.println("data size: " + m_Data[index].length);
-		return m_Data[index];
+		double[] row = m_Matrix.getRow(index);
+		if (m_Matrix instanceof SparseDesignMatrix) {
+			double[] centre = ((SparseDesignMatrix) m_Matrix)
+					.getColumnCentre();
+			if (null != centre)
+				for (int j = 1; j < row.length; j++)
+					row[j] -= centre[j];
+		}
+		return row;
+	}
+
+	public FeatureMatrix getDesignMatrix() {
+		return m_Matrix;
+	}
+
+	/**
+	 * Names of the predictor columns, after nominal attributes are expanded,
+	 * or null if the model was not trained on Instances
+	 */
+	public String[] getColumnNames() {
+		return m_ColumnNames;
+	}
+
+	/**
+	 * Drops the training data and the other buffers kept for rebuilds, the
+	 * Hessian and the Jacobian. The model can still classify instances, and
+	 * be updated incrementally if {@link #prepareUpdates()} was called first,
+	 * but not retrained when an update is rejected.
+	 */
+	public void releaseTrainingData() {
+		m_Data = null;
+		m_Matrix = null;
+		m_Preprocessed = null;
+		m_WarmData = null;
+		m_WarmX = null;
+		m_History = null;
+		m_Appended = null;
+	}
+
+	/**
+	 * Summarises the training data for incremental updates, at the cost of a
+	 * pass over it and D x D memory. Done by the first update if not before;
+	 * must be done before {@link #releaseTrainingData()} for updates to work
+	 * without the training data.
+	 * 
+	 * @return whether the model can be updated incrementally: it has two
+	 *         classes, no L1 penalty or feature hashing, and was trained on
+	 *         data that is still held
+	 */
+	public boolean prepareUpdates() {
+		PreprocessedData data = m_Preprocessed;
+		if (m_NumClasses != 2 || m_L1Penalty > 0 || null != m_Hasher
+				|| null == data || null == m_WarmX || data != m_WarmData)
+			return false;
+		m_Incremental = new IncrementalState(data.matrix, data.classes,
+				data.weights, m_WarmX, data.xMean, data.xSD, data.fillValues);
+		return true;
+	}
+
+	/**
+	 * Adds a single instance; see {@link #updateClassifier(Instances)}, which
+	 * is much cheaper per instance
+	 */
+	@Override
+	public void updateClassifier(Instance instance) throws Exception {
+		if (null == instance.dataset())
+			throw new Exception(
+					"The instance has no dataset to take its attributes from");
+		Instances batch = new Instances(instance.dataset(), 1);
+		batch.add(instance);
+		updateClassifier(batch);
+	}
+
+	/**
+	 * Updates the model with new labelled instances, in time proportional to
+	 * their number. A binary model takes up to getUpdateSteps() Newton steps
+	 * on the new instances plus a quadratic approximation of the old ones.
+	 * If that does not converge, or moves the weights so far that the
+	 * approximation cannot be trusted (see setDriftThreshold), the model is
+	 * retrained from scratch on all instances seen so far instead. Models
+	 * with more classes are always retrained.
+	 * 
+	 * After an incremental update the design matrix, and so the Hessian and
+	 * the Jacobian, still only cover the data of the last full build.
+	 * 
+	 * @return true if the update was incremental, false if it retrained
+	 * @throws Exception
+	 *             if the update is rejected and the training data is no
+	 *             longer held
+	 */
+	public boolean updateClassifier(Instances batch) throws Exception {
+		double[] x = null;
+		if (m_NumClasses == 2 && (null != m_Incremental || prepareUpdates()))
+			x = updateIncremental(batch);
+		appendHistory(batch);
+		if (null != x)
+			return true;
+
+		if (null == m_History)
+			throw new Exception(
+					"Update rejected and no training data to retrain on");
+		Instances all = m_History;
+		if (null != m_Appended) {
+			all = new Instances(m_History, m_History.numInstances()
+					+ m_Appended.numInstances());
+			for (int i = 0; i < m_History.numInstances(); i++)
+				all.add(m_History.instance(i));
+			for (int i = 0; i < m_Appended.numInstances(); i++)
+				all.add(m_Appended.instance(i));
+		}
+		LOGGER.log(Level.INFO, "Incremental update rejected, retraining on "
+				+ all.numInstances() + " instances");
+		buildClassifier(all);
+		return false;
+	}
+
+	/**
+	 * Fits the new instances through m_Incremental and installs the result
+	 * 
+	 * @return the weights in standardised units, or null if the update was
+	 *         rejected
+	 */
+	private double[] updateIncremental(Instances batch) throws Exception {
+		IncrementalState state = m_Incremental;
+		InstanceConverter converter = new InstanceConverter(batch);
+		int dim = m_NumPredictors + 1;
+		if (converter.numColumns() != dim)
+			throw new Exception("The instances do not match the training data");
+		int n = InstanceConverter.countWithClass(batch);
+		DesignMatrix rows = new DesignMatrix(n, dim);
+		int[] cls = new int[n];
+		double[] weights = new double[n];
+		double[] row = new double[dim];
+		for (int k = 0, i = 0; k < batch.numInstances(); k++) {
+			Instance current = batch.instance(k);
+			if (current.classIsMissing())
+				continue;
+			cls[i] = (int) current.classValue();
+			weights[i] = current.weight();
+			converter.convert(current, row);
+			for (int j = 1; j < dim; j++) {
+				if (Double.isNaN(row[j]))
+					row[j] = null != state.fill ? state.fill[j] : 0;
+				if (state.xSD[j] != 0)
+					row[j] = (row[j] - state.xMean[j]) / state.xSD[j];
+			}
+			rows.setRow(i++, row);
+		}
+
+		double[] x = state.update(rows, cls, weights, d, m_UpdateSteps,
+				m_DriftThreshold);
+		if (null == x)
+			return null;
+		setCoefficients(x, state.xMean, state.xSD);
+		double ridge = 0d;
+		for (int r = 1; r < dim; r++)
+			ridge += d[r] * x[r] * x[r];
+		m_LL = -(state.getLoss() + ridge);
+		m_numInstances += n;
+		m_WarmX = x.clone();
+		m_WarmData = null;
+		return x;
+	}
+
+	/**
+	 * Keeps the instances of batch for a retrain, at a cost proportional to
+	 * their number; the training set itself is not copied
+	 */
+	private void appendHistory(Instances batch) {
+		if (null == m_History)
+			return;
+		if (null == m_Appended)
+			m_Appended = new Instances(m_History, batch.numInstances());
+		for (int i = 0; i < batch.numInstances(); i++)
+			m_Appended.add(batch.instance(i));
+	}
+
+	public void setUpdateSteps(int steps) {
+		m_UpdateSteps = steps;
+	}
+
+	public int getUpdateSteps() {
+		return m_UpdateSteps;
+	}
+
+	/**
+	 * An incremental update is rejected, and the model retrained, if it is
+	 * predicted to raise the loss of the earlier data by more than this per
+	 * unit of instance weight
+	 */
+	public void setDriftThreshold(double threshold) {
+		m_DriftThreshold = threshold;
+	}
+
+	public double getDriftThreshold() {
+		return m_DriftThreshold;
+	}
+
+	/**
+	 * Writes the model in the compact format read by {@link #loadModel}:
+	 * coefficients, column metadata and hyperparameters, without any training
+	 * data
+	 */
+	public void saveModel(File file) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		try {
+			writeModel(out);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Writes the model in the compact format. After {@link #MODEL_MAGIC} and
+	 * {@link #MODEL_VERSION} come the number of classes, the class index, the
+	 * number of predictors and of training instances, the log-likelihood, the
+	 * solver, iteration limit and L1 penalty, the number of hash buckets (0
+	 * without hashing) and hash seed, the hyperparameters, the weights, m_Par
+	 * and the column names. Arrays are written as their
+	 * length, -1 for null, and the number of non-zero values. If that is -1
+	 * all values follow, otherwise the index and value of the non-zero ones.
+	 */
+	public void writeModel(OutputStream stream) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				stream));
+		out.writeInt(MODEL_MAGIC);
+		out.writeInt(MODEL_VERSION);
+		out.writeInt(m_NumClasses);
+		out.writeInt(m_ClassIndex);
+		out.writeInt(m_NumPredictors);
+		out.writeInt(m_numInstances);
+		out.writeDouble(m_LL);
+		out.writeInt(m_Solver);
+		out.writeInt(m_MaxIts);
+		out.writeDouble(m_L1Penalty);
+		out.writeInt(null == m_Hasher ? 0 : m_Hasher.getNumBuckets());
+		out.writeInt(null == m_Hasher ? 0 : m_Hasher.getSeed());
+		writeArray(out, d);
+		writeArray(out, params);
+		writeArray(out, null == m_Par ? null : flatCoefficients());
+		if (null == m_ColumnNames)
+			out.writeInt(-1);
+		else {
+			out.writeInt(m_ColumnNames.length);
+			for (String name : m_ColumnNames)
+				out.writeUTF(name);
+		}
+		out.flush();
+	}
+
+	/**
+	 * Reads a model written by {@link #saveModel}, or by Java serialisation
+	 * of the whole classifier as older versions did
+	 */
+	public static ModifiedLogistic loadModel(File file) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(file));
+		try {
+			in.mark(4);
+			int magic = new DataInputStream(in).readInt();
+			in.reset();
+			if (magic == MODEL_MAGIC)
+				return readModel(in);
+			try {
+				return (ModifiedLogistic) new ObjectInputStream(in)
+						.readObject();
+			} catch (ClassNotFoundException e) {
+				throw new IOException(file + " does not hold a model", e);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads a model written by {@link #writeModel}
+	 */
+	public static ModifiedLogistic readModel(InputStream stream)
+			throws IOException {
+		DataInputStream in = new DataInputStream(stream);
+		if (in.readInt() != MODEL_MAGIC)
+			throw new IOException("Not a ModifiedLogistic model");
+		int version = in.readInt();
+		if (version > MODEL_VERSION)
+			throw new IOException("Unsupported model version " + version);
+		ModifiedLogistic model = new ModifiedLogistic();
+		model.m_NumClasses = in.readInt();
+		model.m_ClassIndex = in.readInt();
+		model.m_NumPredictors = in.readInt();
+		model.m_numInstances = in.readInt();
+		model.m_LL = in.readDouble();
+		model.m_Solver = in.readInt();
+		model.m_MaxIts = in.readInt();
+		if (version >= 2)
+			model.m_L1Penalty = in.readDouble();
+		if (version >= 3) {
+			int numBuckets = in.readInt();
+			int seed = in.readInt();
+			if (numBuckets > 0)
+				model.m_Hasher = new FeatureHasher(numBuckets, seed);
+		}
+		model.d = readArray(in, version);
+		model.params = readArray(in, version);
+		double[] coef = readArray(in, version);
+		if (null != coef) {
+			int dim = model.m_NumPredictors + 1;
+			model.m_Par = new double[dim][model.m_NumClasses - 1];
+			for (int j = 0; j < model.m_NumClasses - 1; j++)
+				for (int k = 0; k < dim; k++)
+					model.m_Par[k][j] = coef[j * dim + k];
+			model.m_Coefficients = coef;
+		}
+		int numNames = in.readInt();
+		if (numNames >= 0) {
+			model.m_ColumnNames = new String[numNames];
+			for (int i = 0; i < numNames; i++)
+				model.m_ColumnNames[i] = in.readUTF();
+		}
+		return model;
+	}
+
+	private static void writeArray(DataOutputStream out, double[] a)
+			throws IOException {
+		if (null == a) {
+			out.writeInt(-1);
+			return;
+		}
+		out.writeInt(a.length);
+		int nonZero = 0;
+		for (double v : a)
+			if (v != 0d)
+				nonZero++;
+		// An index and a value take 12 bytes, a value alone 8
+		if (3 * nonZero < 2 * a.length) {
+			out.writeInt(nonZero);
+			for (int i = 0; i < a.length; i++)
+				if (a[i] != 0d) {
+					out.writeInt(i);
+					out.writeDouble(a[i]);
+				}
+			return;
+		}
+		out.writeInt(-1);
+		for (double v : a)
+			out.writeDouble(v);
+	}
+
+	private static double[] readArray(DataInputStream in, int version)
+			throws IOException {
+		int n = in.readInt();
+		if (n < 0)
+			return null;
+		double[] a = new double[n];
+		int nonZero = version >= 2 ? in.readInt() : -1;
+		if (nonZero < 0)
+			for (int i = 0; i < n; i++)
+				a[i] = in.readDouble();
+		else
+			for (int p = 0; p < nonZero; p++) {
+				int i = in.readInt();
+				a[i] = in.readDouble();
+			}
+		return a;
+	}
+
+	/**
+	 * Stores dense training data as float, halving its memory and the bytes
+	 * read per pass. Sums are still accumulated in double.
+	 */
+	public void setFloatPrecision(boolean floatPrecision) {
+		m_FloatPrecision = floatPrecision;
+	}
+
+	public boolean getFloatPrecision() {
+		return m_FloatPrecision;
+	}
+
+	/**
+	 * Preprocessed form of the data of the last build. Handing it to another
+	 * classifier lets that one train on the same Instances without
+	 * preprocessing them again.
+	 */
+	public PreprocessedData getPreprocessedData() {
+		return m_Preprocessed;
+	}
+
+	public void setPreprocessedData(PreprocessedData data) {
+		m_Preprocessed = data;
+	}
+
+	/**
+	 * Trains on a sparse (CSR) copy of the data. Sparse input instances are
+	 * always trained on sparsely.
+	 */
+	public void setSparse(boolean sparse) {
+		m_Sparse = sparse;
+	}
+
+	public boolean getSparse() {
+		return m_Sparse;
+	}
+
+	/**
+	 * Whether a rebuild on the same training data starts from the last
+	 * solution rather than from the null model. On by default.
+	 */
+	public void setWarmStart(boolean warmStart) {
+		m_WarmStart = warmStart;
+	}
+
+	public boolean getWarmStart() {
+		return m_WarmStart;
+	}
+
+	/**
+	 * Selects the solver, {@link #SOLVER_BFGS} (default) or
+	 * {@link #SOLVER_TRUST_REGION}
+	 */
+	public void setSolver(int solver) {
+		m_Solver = solver;
+	}
+
+	public int getSolver() {
+		return m_Solver;
+	}
+
+	/**
+	 * Sets the L1 penalty of the weights in standardised units, added to the
+	 * ridge penalty d. A positive penalty makes the weights of uninformative
+	 * predictors exactly zero; see {@link #getNumNonZeroWeights()}. Only
+	 * binary models support it. 0 (default) turns it off.
+	 */
+	public void setL1Penalty(double l1Penalty) {
+		m_L1Penalty = l1Penalty;
+	}
+
+	public double getL1Penalty() {
+		return m_L1Penalty;
+	}
+
+	/**
+	 * Trains and scores on the attributes hashed by hasher instead of the
+	 * attributes themselves, which bounds the number of weights, and so the
+	 * size of the Hessian, by its number of buckets. Null (default) turns
+	 * hashing off. Only applies to Instances; data given as a
+	 * {@link SparseDesignMatrix} is taken as it is.
+	 */
+	public void setFeatureHasher(FeatureHasher hasher) {
+		m_Hasher = hasher;
+		m_Preprocessed = null;
+	}
+
+	public FeatureHasher getFeatureHasher() {
+		return m_Hasher;
+	}
+
+	/**
+	 * A summary of the model: its size, penalty and fit, and the weights that
+	 * are not zero
+	 */
+	@Override
+	public String toString() {
+		if (null == m_Par)
+			return "ModifiedLogistic: no model built yet.";
+		StringBuffer text = new StringBuffer("ModifiedLogistic\n\n");
+		text.append("Classes: " + m_NumClasses + ", predictors: "
+				+ m_NumPredictors + ", training instances: " + m_numInstances
+				+ "\n");
+		text.append("Non-zero weights: " + getNumNonZeroWeights() + " of "
+				+ m_NumPredictors * (m_NumClasses - 1) + "\n");
+		if (m_L1Penalty > 0)
+			text.append("L1 penalty: " + m_L1Penalty + "\n");
+		text.append("Penalised log-likelihood: "
+				+ Utils.doubleToString(m_LL, 4) + "\n\n");
+		for (int k = 0; k < m_Par.length; k++) {
+			boolean zero = true;
+			for (double w : m_Par[k])
+				zero &= w == 0d;
+			if (k > 0 && zero)
+				continue;
+			String name = k == 0 ? "Intercept"
+					: null != m_ColumnNames ? m_ColumnNames[k - 1] : "x" + k;
+			text.append(Utils.padRight(name, 30));
+			for (double w : m_Par[k])
+				text.append(Utils.doubleToString(w, 14, 6));
+			text.append("\n");
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Penalised log-likelihood of the training data at the fitted weights
+	 */
+	public double getLogLikelihood() {
+		return m_LL;
+	}
+
+	/**
+	 * Iterations the last build took. For BFGS this is the number of
+	 * gradient evaluations, one per quasi-Newton iteration.
+	 */
+	public int getNumIterations() {
+		return m_NumIterations;
+	}
+
+	/**
+	 * Passes over the training data the last build took: one per objective,
+	 * gradient or Hessian-vector product evaluation
+	 */
+	public int getNumDataPasses() {
+		return m_NumDataPasses;
 	}
 
 	public void setMaxIts(int it) {
@@ -670,6 +1787,18 @@ public class ModifiedLogistic extends Logistic {
 		return m_MaxIts;
 	}
 
+	/**
+	 * Sets the number of threads used to evaluate the training loss and its
+	 * gradient. Results are reproducible for a fixed number of threads.
+	 */
+	public void setNumThreads(int numThreads) {
+		m_NumThreads = Math.max(1, numThreads);
+	}
+
+	public int getNumThreads() {
+		return m_NumThreads;
+	}
+
 	public void setNumClasses(int num) {
 		m_NumClasses = num;
 	}
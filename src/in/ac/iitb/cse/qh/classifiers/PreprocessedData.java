@@ -0,0 +1,143 @@
+package in.ac.iitb.cse.qh.classifiers;
+
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Training data of {@link ModifiedLogistic} after preprocessing: filtered,
+ * standardised and extracted into a {@link FeatureMatrix}, with the classes
+ * and weights of the instances and the statistics needed to map the fitted
+ * weights back to attribute units. Rebuilding on the same training set with
+ * other hyperparameters reuses it instead of preprocessing again. It can be
+ * handed to other classifiers trained on the same data with
+ * {@link ModifiedLogistic#setPreprocessedData}.
+ *
+ * An entry is matched to training data by identity of the data object and a
+ * fingerprint of its size and a sample of its instances, so in-place edits
+ * are caught on a best effort basis only.
+ */
+public class PreprocessedData {
+	/** Number of instances hashed into the fingerprint */
+	private static final int SAMPLES = 32;
+
+	private final Object key;
+	private final long fingerprint;
+	private final boolean sparse;
+	private final boolean floatPrecision;
+	/** Hasher the columns are buckets of, or null for attribute columns */
+	private final FeatureHasher hasher;
+
+	final FeatureMatrix matrix;
+	final int[] classes;
+	final double[] weights;
+	/** Number of instances of every class */
+	final double[] classCounts;
+	final double[] xMean;
+	final double[] xSD;
+	final int classIndex;
+	final int numClasses;
+	/** Names of the predictor columns, or null if not known */
+	final String[] columnNames;
+	/**
+	 * Replacement of missing values of every column in attribute units, or
+	 * null if the data had none to replace
+	 */
+	final double[] fillValues;
+
+	/** matrix by columns for coordinate descent, built on first use */
+	private CoordinateDescent.Columns columns;
+
+	PreprocessedData(Object key, long fingerprint, boolean sparse,
+			boolean floatPrecision, FeatureHasher hasher,
+			FeatureMatrix matrix, int[] classes,
+			double[] weights, double[] classCounts, double[] xMean,
+			double[] xSD, int classIndex, int numClasses,
+			String[] columnNames, double[] fillValues) {
+		this.key = key;
+		this.fingerprint = fingerprint;
+		this.sparse = sparse;
+		this.floatPrecision = floatPrecision;
+		this.hasher = hasher;
+		this.matrix = matrix;
+		this.classes = classes;
+		this.weights = weights;
+		this.classCounts = classCounts;
+		this.xMean = xMean;
+		this.xSD = xSD;
+		this.classIndex = classIndex;
+		this.numClasses = numClasses;
+		this.columnNames = columnNames;
+		this.fillValues = fillValues;
+	}
+
+	/**
+	 * Whether this is the preprocessed form of the given training data, made
+	 * with the given storage options and hashed by an equivalent hasher, or
+	 * not hashed if hasher is null
+	 */
+	boolean matches(Object key, long fingerprint, boolean sparse,
+			boolean floatPrecision, FeatureHasher hasher) {
+		return this.key == key && this.fingerprint == fingerprint
+				&& this.sparse == sparse
+				&& this.floatPrecision == floatPrecision
+				&& sameHashing(this.hasher, hasher);
+	}
+
+	private static boolean sameHashing(FeatureHasher a, FeatureHasher b) {
+		if (null == a || null == b)
+			return a == b;
+		return a.getNumBuckets() == b.getNumBuckets()
+				&& a.getSeed() == b.getSeed();
+	}
+
+	public FeatureMatrix getMatrix() {
+		return matrix;
+	}
+
+	/**
+	 * The columns of matrix for {@link CoordinateDescent}, built by the first
+	 * fit with the L1 penalty and reused by the later ones
+	 */
+	CoordinateDescent.Columns getColumns() {
+		if (null == columns)
+			columns = new CoordinateDescent.Columns(matrix);
+		return columns;
+	}
+
+	public int numInstances() {
+		return classes.length;
+	}
+
+	/**
+	 * Hash of the size of data and of the values and weights of up to
+	 * SAMPLES evenly spaced instances
+	 */
+	static long fingerprint(Instances data) {
+		int n = data.numInstances();
+		long h = n;
+		h = h * 31 + data.numAttributes();
+		h = h * 31 + data.classIndex();
+		int step = Math.max(1, n / SAMPLES);
+		for (int i = 0; i < n; i += step) {
+			Instance instance = data.instance(i);
+			h = h * 31 + Double.doubleToLongBits(instance.weight());
+			for (int p = 0; p < instance.numValues(); p++) {
+				h = h * 31 + instance.index(p);
+				h = h * 31 + Double.doubleToLongBits(instance.valueSparse(p));
+			}
+		}
+		return h;
+	}
+
+	/**
+	 * Hash of the shape of data; the class and weight arrays it is trained
+	 * with are matched by identity
+	 */
+	static long fingerprint(SparseDesignMatrix data, int numClasses) {
+		long h = data.numRows();
+		h = h * 31 + data.numColumns();
+		h = h * 31 + data.numNonZero();
+		h = h * 31 + numClasses;
+		return h;
+	}
+}
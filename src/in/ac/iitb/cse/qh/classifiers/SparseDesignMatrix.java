@@ -0,0 +1,222 @@
+package in.ac.iitb.cse.qh.classifiers;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * A design matrix in compressed sparse row (CSR) form. The intercept column 0
+ * is implicitly 1 for every row and is not stored; only the non-zero
+ * predictor values are. Rows are appended in order with {@link #add} and
+ * {@link #endRow}. A per-column scale can be set; it is applied on the fly,
+ * so the stored values stay as they were added.
+ *
+ * A per-column centre can be set too, but is not applied by the row
+ * operations, which would then have to visit every column: the matrix stands
+ * for the scaled rows minus the centre, and users fold the centre into the
+ * intercept instead. Since x.w - c.w = x.(w - (c.w) e_0), the centred rows
+ * with weights w give the margins of the stored rows with the intercept
+ * shifted by {@link #shiftIntercept}, and a gradient with respect to the
+ * shifted weights is mapped back by {@link #centreGradient}.
+ */
+public class SparseDesignMatrix implements FeatureMatrix, Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private final int numColumns;
+	private int numRows;
+	private int numNonZero;
+
+	/** Row r occupies [rowStart[r], rowStart[r + 1]) of columns and values */
+	private int[] rowStart;
+	private int[] columns;
+	private double[] values;
+
+	/** Factor every stored value of a column is multiplied by when read */
+	private double[] scale;
+
+	/** Value subtracted from every scaled value of a column, or null */
+	private double[] centre;
+
+	/**
+	 * @param numColumns
+	 *            number of columns including the intercept column 0
+	 * @param expectedRows
+	 *            initial row capacity
+	 * @param expectedNonZero
+	 *            initial capacity for non-zero values
+	 */
+	public SparseDesignMatrix(int numColumns, int expectedRows,
+			int expectedNonZero) {
+		this.numColumns = numColumns;
+		rowStart = new int[Math.max(1, expectedRows) + 1];
+		columns = new int[Math.max(1, expectedNonZero)];
+		values = new double[columns.length];
+		scale = new double[numColumns];
+		Arrays.fill(scale, 1d);
+	}
+
+	/**
+	 * Adds a non-zero value to the current row. Columns must be at least 1 and
+	 * increasing within a row.
+	 */
+	public void add(int column, double value) {
+		if (column < 1 || column >= numColumns)
+			throw new IllegalArgumentException("Column " + column
+					+ " out of range");
+		if (value == 0d)
+			return;
+		if (numNonZero == columns.length) {
+			int capacity = Math.max(16, columns.length * 2);
+			columns = Arrays.copyOf(columns, capacity);
+			values = Arrays.copyOf(values, capacity);
+		}
+		columns[numNonZero] = column;
+		values[numNonZero++] = value;
+	}
+
+	/**
+	 * Finishes the current row
+	 */
+	public void endRow() {
+		if (numRows + 2 > rowStart.length)
+			rowStart = Arrays.copyOf(rowStart, rowStart.length * 2);
+		rowStart[++numRows] = numNonZero;
+	}
+
+	/**
+	 * Sets the factor each column j > 0 is multiplied by when read, replacing
+	 * any earlier scale
+	 */
+	public void setColumnScale(double[] scale) {
+		this.scale = scale.clone();
+		this.scale[0] = 1d;
+	}
+
+	/**
+	 * The column scale; all ones if none has been set
+	 */
+	public double[] getColumnScale() {
+		return scale;
+	}
+
+	/**
+	 * Sets the centre of each column j > 0, in scaled units, replacing any
+	 * earlier one; null for none
+	 */
+	public void setColumnCentre(double[] centre) {
+		if (null == centre) {
+			this.centre = null;
+			return;
+		}
+		this.centre = centre.clone();
+		this.centre[0] = 0d;
+	}
+
+	/**
+	 * The column centre, or null if none has been set
+	 */
+	public double[] getColumnCentre() {
+		return centre;
+	}
+
+	/**
+	 * w[wOffset] -= c.w[wOffset .. wOffset + numColumns), so that the stored
+	 * rows give the margins of the centred ones
+	 */
+	public void shiftIntercept(double[] w, int wOffset) {
+		w[wOffset] -= centreDot(w, wOffset);
+	}
+
+	/**
+	 * c.w[wOffset .. wOffset + numColumns), 0 if there is no centre
+	 */
+	public double centreDot(double[] w, int wOffset) {
+		if (null == centre)
+			return 0d;
+		double sum = 0d;
+		for (int j = 1; j < numColumns; j++)
+			sum += centre[j] * w[wOffset + j];
+		return sum;
+	}
+
+	/**
+	 * g[gOffset + j] -= c[j] g[gOffset] for every column j: turns a gradient
+	 * with respect to weights shifted by {@link #shiftIntercept} into the
+	 * gradient with respect to the weights themselves
+	 */
+	public void centreGradient(double[] g, int gOffset) {
+		if (null == centre)
+			return;
+		for (int j = 1; j < numColumns; j++)
+			g[gOffset + j] -= centre[j] * g[gOffset];
+	}
+
+	@Override
+	public int numRows() {
+		return numRows;
+	}
+
+	@Override
+	public int numColumns() {
+		return numColumns;
+	}
+
+	public int numNonZero() {
+		return numNonZero;
+	}
+
+	public int rowStart(int row) {
+		return rowStart[row];
+	}
+
+	public int rowEnd(int row) {
+		return rowStart[row + 1];
+	}
+
+	/**
+	 * Column indices of the stored values; see {@link #rowStart(int)}
+	 */
+	public int[] getColumns() {
+		return columns;
+	}
+
+	/**
+	 * The stored values, before column scaling; see {@link #rowStart(int)}
+	 */
+	public double[] getValues() {
+		return values;
+	}
+
+	@Override
+	public double get(int row, int column) {
+		if (column == 0)
+			return 1d;
+		int p = Arrays.binarySearch(columns, rowStart[row], rowStart[row + 1],
+				column);
+		return p >= 0 ? values[p] * scale[column] : 0d;
+	}
+
+	@Override
+	public double dot(int row, double[] w, int wOffset) {
+		double sum = w[wOffset];
+		for (int p = rowStart[row], end = rowStart[row + 1]; p < end; p++)
+			sum += values[p] * scale[columns[p]] * w[wOffset + columns[p]];
+		return sum;
+	}
+
+	@Override
+	public void addRow(int row, double alpha, double[] dst, int dstOffset) {
+		dst[dstOffset] += alpha;
+		for (int p = rowStart[row], end = rowStart[row + 1]; p < end; p++)
+			dst[dstOffset + columns[p]] += alpha
+					* (values[p] * scale[columns[p]]);
+	}
+
+	@Override
+	public double[] getRow(int row) {
+		double[] r = new double[numColumns];
+		r[0] = 1d;
+		for (int p = rowStart[row], end = rowStart[row + 1]; p < end; p++)
+			r[columns[p]] = values[p] * scale[columns[p]];
+		return r;
+	}
+}
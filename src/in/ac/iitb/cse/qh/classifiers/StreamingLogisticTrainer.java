@@ -0,0 +1,454 @@
+package in.ac.iitb.cse.qh.classifiers;
+
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Trains a {@link ModifiedLogistic} out of core by mini-batch stochastic
+ * optimisation over an {@link InstanceBatchSource}. The objective is the one
+ * {@link ModifiedLogistic#buildClassifier} minimises: the weighted negative
+ * log-likelihood of the standardised data plus the ridge penalty d[j] w^2 on
+ * every coefficient but the intercepts. Missing values are replaced as
+ * ReplaceMissingValues would: by the weighted mean of a numeric attribute
+ * and the weighted mode of a nominal one.
+ *
+ * Only one batch of instances is held in memory. The first pass over the
+ * source computes the attribute means and standard deviations, a second one
+ * the step size (skipped if a learning rate is set), then every epoch is one
+ * pass, and a final pass evaluates the objective at the solution. SAGA
+ * additionally keeps numClasses - 1 doubles per instance, instead of a row
+ * of the data.
+ */
+public class StreamingLogisticTrainer {
+	private static final Logger LOGGER = Logger
+			.getLogger(StreamingLogisticTrainer.class.getName());
+
+	/** Mini-batch SGD with a step decaying by epoch and iterate averaging */
+	public static final int METHOD_SGD = 0;
+
+	/** Mini-batch SAGA, a variance reduced SGD with a constant step */
+	public static final int METHOD_SAGA = 1;
+
+	private int method = METHOD_SAGA;
+	private int batchSize = 256;
+	private int maxEpochs = 50;
+
+	/** Stop when no weight changes by more than this over an epoch */
+	private double tolerance = 1e-4;
+
+	/** Step size; 0 to derive it from the data */
+	private double learningRate;
+
+	private int numEpochs;
+	private int numDataPasses;
+
+	// Per-batch buffers
+	private double[] raw;
+	private int[] cls;
+	private double[] weights;
+	private double[] rows;
+	private double[] residuals;
+
+	// Standardisation
+	private double[] fill;
+	private double[] xMean;
+	private double[] xSD;
+
+	private int nR;
+	private int nK;
+	private int dim;
+
+	public void setMethod(int method) {
+		this.method = method;
+	}
+
+	public int getMethod() {
+		return method;
+	}
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public void setMaxEpochs(int maxEpochs) {
+		this.maxEpochs = maxEpochs;
+	}
+
+	public int getMaxEpochs() {
+		return maxEpochs;
+	}
+
+	public void setTolerance(double tolerance) {
+		this.tolerance = tolerance;
+	}
+
+	public double getTolerance() {
+		return tolerance;
+	}
+
+	public void setLearningRate(double learningRate) {
+		this.learningRate = learningRate;
+	}
+
+	public double getLearningRate() {
+		return learningRate;
+	}
+
+	/**
+	 * Epochs the last call to {@link #train} took
+	 */
+	public int getNumEpochs() {
+		return numEpochs;
+	}
+
+	/**
+	 * Passes over the source the last call to {@link #train} took
+	 */
+	public int getNumDataPasses() {
+		return numDataPasses;
+	}
+
+	/**
+	 * Fits the weights of classifier to the instances of source, using the
+	 * hyperparameters of classifier. Afterwards the classifier scores
+	 * instances with the attributes of the source, like one built on them.
+	 *
+	 * @throws Exception
+	 *             if the source can't be read or the weights of the
+	 *             instances sum to less than one
+	 */
+	public void train(InstanceBatchSource source, ModifiedLogistic classifier)
+			throws Exception {
+		nR = source.numPredictors();
+		nK = source.numClasses() - 1;
+		dim = nR + 1;
+		raw = new double[batchSize * nR];
+		cls = new int[batchSize];
+		weights = new double[batchSize];
+		rows = new double[batchSize * dim];
+		residuals = new double[batchSize * nK];
+		numDataPasses = 0;
+		numEpochs = 0;
+
+		double[] d = classifier.getHyperparameters();
+		if (null == d) {
+			LOGGER.log(Level.INFO, "No hyperparameters... assuming default");
+			d = new double[dim];
+			Arrays.fill(d, 1.0d);
+			classifier.setHyperparameters(d);
+		}
+
+		double[] sY = new double[nK + 1];
+		double totWeights = computeMoments(source, sY);
+		int numInstances = 0;
+		for (int m = 0; m <= nK; m++)
+			numInstances += sY[m];
+		if ((totWeights <= 1) && (numInstances > 1))
+			throw new Exception(
+					"Sum of weights of instances less than 1, please reweight!");
+
+		double[] x = new double[dim * nK];
+		for (int p = 0; p < nK; p++)
+			x[p * dim] = Math.log(sY[p] + 1.0) - Math.log(sY[nK] + 1.0); // Null
+																			// model
+
+		double step = learningRate;
+		if (step <= 0) {
+			double maxRidge = 0d;
+			for (int j = 1; j < dim; j++)
+				maxRidge = Math.max(maxRidge, d[j]);
+			double lipschitz = batchLipschitz(source, numInstances) + 2
+					* maxRidge / numInstances;
+			step = method == METHOD_SAGA ? 1 / (3 * lipschitz) : 1 / lipschitz;
+		}
+
+		if (method == METHOD_SAGA)
+			x = saga(source, x, d, step, numInstances);
+		else
+			x = sgd(source, x, d, step, numInstances);
+
+		double objective = objective(source, x, d);
+		LOGGER.log(Level.FINE, "Streaming fit took " + numEpochs + " epochs, "
+				+ numDataPasses + " passes over the data, objective "
+				+ objective);
+		classifier.setModel(nK + 1, source.classIndex(), numInstances, x,
+				xMean, xSD, -objective);
+	}
+
+	/**
+	 * Pass over the source collecting the missing value replacements and the
+	 * means and standard deviations of the attributes after replacement
+	 *
+	 * @return the total weight of the instances
+	 */
+	private double computeMoments(InstanceBatchSource source, double[] sY)
+			throws Exception {
+		double[] sum = new double[dim];
+		double[] sumSq = new double[dim];
+		double[] present = new double[dim];
+		boolean[] nominal = new boolean[dim];
+		for (int j = 1; j <= nR; j++)
+			nominal[j] = source.isNominal(j - 1);
+		double totWeights = 0;
+		source.reset();
+		numDataPasses++;
+		int n;
+		while ((n = source.read(raw, cls, weights, batchSize)) > 0) {
+			for (int i = 0; i < n; i++) {
+				totWeights += weights[i];
+				sY[cls[i]]++;
+				for (int j = 1; j <= nR; j++) {
+					double v = raw[i * nR + j - 1];
+					if (Double.isNaN(v))
+						continue;
+					present[j] += weights[i];
+					sum[j] += weights[i] * v;
+					sumSq[j] += weights[i] * v * v;
+				}
+			}
+		}
+
+		fill = new double[dim];
+		xMean = new double[dim];
+		xSD = new double[dim];
+		for (int j = 1; j <= nR; j++) {
+			if (nominal[j])
+				// Values are 0 and 1, so sum is the weight of the 1s; ties
+				// go to the first value, as in InstanceConverter
+				fill[j] = sum[j] > present[j] - sum[j] ? 1d : 0d;
+			else
+				fill[j] = present[j] > 0 ? sum[j] / present[j] : 0d;
+			// the replaced values add to the sums as well
+			xMean[j] = sum[j] + (totWeights - present[j]) * fill[j];
+			xSD[j] = sumSq[j] + (totWeights - present[j]) * fill[j] * fill[j];
+		}
+		ModifiedLogistic.finishMoments(xMean, xSD, totWeights);
+		return totWeights;
+	}
+
+	/**
+	 * Replaces missing values and standardises the n instances of the
+	 * current batch into rows, with the intercept in column 0
+	 */
+	private void standardise(int n) {
+		for (int i = 0; i < n; i++) {
+			int row = i * dim;
+			rows[row] = 1;
+			for (int j = 1; j <= nR; j++) {
+				double v = raw[i * nR + j - 1];
+				if (Double.isNaN(v))
+					v = fill[j];
+				if (xSD[j] != 0)
+					v = (v - xMean[j]) / xSD[j];
+				rows[row + j] = v;
+			}
+		}
+	}
+
+	/**
+	 * Lipschitz constant of the gradient of the loss averaged over a batch.
+	 * It lies between the mean and the largest constant of a single
+	 * instance, w ||x||^2 / 2, approaching the mean as batches grow (Gazagnadou,
+	 * Gower and Salmon, "Optimal mini-batch and step sizes for SAGA", 2019).
+	 */
+	private double batchLipschitz(InstanceBatchSource source, int numInstances)
+			throws Exception {
+		double max = 0d, mean = 0d;
+		source.reset();
+		numDataPasses++;
+		int n;
+		while ((n = source.read(raw, cls, weights, batchSize)) > 0) {
+			standardise(n);
+			for (int i = 0; i < n; i++) {
+				double sq = 0d;
+				for (int j = i * dim; j < (i + 1) * dim; j++)
+					sq += rows[j] * rows[j];
+				max = Math.max(max, 0.5 * weights[i] * sq);
+				mean += 0.5 * weights[i] * sq / numInstances;
+			}
+		}
+		int b = Math.min(batchSize, numInstances);
+		if (numInstances <= 1)
+			return max;
+		return ((double) numInstances * (b - 1) * mean + (numInstances - b)
+				* max)
+				/ ((double) b * (numInstances - 1));
+	}
+
+	/**
+	 * Computes the derivatives w_i (p_ik - [y_i = k]) of the loss of every
+	 * instance of the batch with respect to its margins
+	 *
+	 * @return the weighted negative log-likelihood of the batch
+	 */
+	private double residuals(double[] x, int n) {
+		double nll = 0d;
+		for (int i = 0; i < n; i++) {
+			int row = i * dim, base = i * nK;
+			double max = Double.NEGATIVE_INFINITY;
+			for (int offset = 0; offset < nK; offset++) {
+				double exp = 0d;
+				for (int j = 0; j < dim; j++)
+					exp += rows[row + j] * x[offset * dim + j];
+				residuals[base + offset] = exp;
+				if (exp > max)
+					max = exp;
+			}
+
+			double denom = Math.exp(-max);
+			double num = cls[i] == nK ? -max : residuals[base + cls[i]] - max;
+			for (int offset = 0; offset < nK; offset++) {
+				residuals[base + offset] = Math.exp(residuals[base + offset]
+						- max);
+				denom += residuals[base + offset];
+			}
+			nll -= weights[i] * (num - Math.log(denom));
+
+			for (int offset = 0; offset < nK; offset++)
+				residuals[base + offset] = weights[i]
+						* (residuals[base + offset] / denom);
+			if (cls[i] != nK)
+				residuals[base + cls[i]] -= weights[i];
+		}
+		return nll;
+	}
+
+	/**
+	 * Adds the gradient of the ridge penalty, scaled by alpha, to dir
+	 */
+	private void addRidge(double[] x, double[] d, double alpha, double[] dir) {
+		for (int offset = 0; offset < nK; offset++)
+			for (int r = 1; r < dim; r++)
+				dir[offset * dim + r] += alpha * 2 * d[r] * x[offset * dim + r];
+	}
+
+	private double[] saga(InstanceBatchSource source, double[] x, double[] d,
+			double step, int numInstances) throws Exception {
+		double[] table = new double[numInstances * nK];
+		double[] tableSum = new double[x.length];
+		double[] dir = new double[x.length];
+		double[] last = new double[x.length];
+		int seen = 0;
+
+		while (numEpochs < maxEpochs) {
+			System.arraycopy(x, 0, last, 0, x.length);
+			source.reset();
+			numDataPasses++;
+			int first = 0, n;
+			while ((n = source.read(raw, cls, weights, batchSize)) > 0) {
+				standardise(n);
+				residuals(x, n);
+
+				// dir = sum over the batch of (new - stored gradient)
+				Arrays.fill(dir, 0d);
+				for (int i = 0; i < n; i++) {
+					for (int offset = 0; offset < nK; offset++) {
+						int t = (first + i) * nK + offset;
+						double delta = residuals[i * nK + offset] - table[t];
+						table[t] = residuals[i * nK + offset];
+						if (delta == 0d)
+							continue;
+						for (int j = 0; j < dim; j++)
+							dir[offset * dim + j] += delta * rows[i * dim + j];
+					}
+				}
+
+				// During the first epoch only the instances seen so far have
+				// a stored gradient
+				int stored = numEpochs == 0 ? seen : numInstances;
+				for (int j = 0; j < x.length; j++) {
+					double v = dir[j] / n;
+					if (stored > 0)
+						v += tableSum[j] / stored;
+					tableSum[j] += dir[j];
+					dir[j] = v;
+				}
+				addRidge(x, d, 1d / numInstances, dir);
+				for (int j = 0; j < x.length; j++)
+					x[j] -= step * dir[j];
+				first += n;
+				seen += n;
+			}
+			numEpochs++;
+			if (converged(x, last))
+				break;
+		}
+		return x;
+	}
+
+	private double[] sgd(InstanceBatchSource source, double[] x, double[] d,
+			double step, int numInstances) throws Exception {
+		double[] dir = new double[x.length];
+		double[] avg = new double[x.length];
+		double[] last = new double[x.length];
+		long averaged = 0;
+
+		while (numEpochs < maxEpochs) {
+			System.arraycopy(averaged > 0 ? avg : x, 0, last, 0, x.length);
+			source.reset();
+			numDataPasses++;
+			int n;
+			while ((n = source.read(raw, cls, weights, batchSize)) > 0) {
+				standardise(n);
+				residuals(x, n);
+				Arrays.fill(dir, 0d);
+				for (int i = 0; i < n; i++)
+					for (int offset = 0; offset < nK; offset++) {
+						double r = residuals[i * nK + offset] / n;
+						for (int j = 0; j < dim; j++)
+							dir[offset * dim + j] += r * rows[i * dim + j];
+					}
+				addRidge(x, d, 1d / numInstances, dir);
+				double eta = step / Math.sqrt(numEpochs + 1);
+				for (int j = 0; j < x.length; j++)
+					x[j] -= eta * dir[j];
+
+				// Average the iterates after the first epoch
+				if (numEpochs > 0) {
+					averaged++;
+					for (int j = 0; j < x.length; j++)
+						avg[j] += (x[j] - avg[j]) / averaged;
+				}
+			}
+			numEpochs++;
+			if (averaged > 0 && converged(avg, last))
+				break;
+		}
+		return averaged > 0 ? avg : x;
+	}
+
+	private boolean converged(double[] x, double[] last) {
+		double change = 0d, size = 1d;
+		for (int j = 0; j < x.length; j++) {
+			change = Math.max(change, Math.abs(x[j] - last[j]));
+			size = Math.max(size, Math.abs(x[j]));
+		}
+		LOGGER.log(Level.FINE, "Epoch " + numEpochs + ": largest change "
+				+ change);
+		return change <= tolerance * size;
+	}
+
+	/**
+	 * Pass over the source evaluating the objective at x
+	 */
+	private double objective(InstanceBatchSource source, double[] x,
+			double[] d) throws Exception {
+		double nll = 0d;
+		source.reset();
+		numDataPasses++;
+		int n;
+		while ((n = source.read(raw, cls, weights, batchSize)) > 0) {
+			standardise(n);
+			nll += residuals(x, n);
+		}
+		for (int offset = 0; offset < nK; offset++)
+			for (int r = 1; r < dim; r++)
+				nll += d[r] * x[offset * dim + r] * x[offset * dim + r];
+		return nll;
+	}
+}
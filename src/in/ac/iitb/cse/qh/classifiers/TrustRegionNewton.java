@@ -0,0 +1,190 @@
+package in.ac.iitb.cse.qh.classifiers;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Trust-region Newton method for {@link LogisticLoss}. Each Newton step is
+ * solved approximately by conjugate gradient inside the trust region, using
+ * Hessian-vector products, so the Hessian itself is never formed. Follows
+ * Lin, Weng and Keerthi, "Trust region Newton method for large-scale logistic
+ * regression", JMLR 2008.
+ */
+class TrustRegionNewton {
+	private static final Logger LOGGER = Logger
+			.getLogger(TrustRegionNewton.class.getName());
+
+	// Step acceptance and trust region update constants
+	private static final double ETA0 = 1e-4, ETA1 = 0.25, ETA2 = 0.75;
+	private static final double SIGMA1 = 0.25, SIGMA2 = 0.5, SIGMA3 = 4;
+
+	private final LogisticLoss loss;
+
+	/** Stop when the gradient norm falls below eps times its initial value */
+	private double eps = 1e-5;
+
+	private int maxIterations = 1000;
+
+	private int numIterations;
+	private int numCGIterations;
+	private double minFunction;
+
+	TrustRegionNewton(LogisticLoss loss) {
+		this.loss = loss;
+		loss.setKeepCurvature(true);
+	}
+
+	void setEpsilon(double eps) {
+		this.eps = eps;
+	}
+
+	void setMaxIterations(int maxIterations) {
+		this.maxIterations = maxIterations;
+	}
+
+	int getNumIterations() {
+		return numIterations;
+	}
+
+	int getNumCGIterations() {
+		return numCGIterations;
+	}
+
+	double getMinFunction() {
+		return minFunction;
+	}
+
+	/**
+	 * Minimises the loss starting from w, which is overwritten with the
+	 * solution
+	 */
+	void minimize(double[] w) throws Exception {
+		int n = w.length;
+		double[] g = new double[n], s = new double[n], r = new double[n];
+		double[] wNew = new double[n];
+
+		double f = loss.evaluate(w, g);
+		double gnorm = norm(g);
+		double gnorm0 = gnorm;
+		double delta = gnorm;
+		numIterations = 0;
+		numCGIterations = 0;
+
+		while (numIterations < maxIterations && gnorm > eps * gnorm0) {
+			numIterations++;
+			numCGIterations += conjugateGradient(delta, g, s, r);
+
+			for (int i = 0; i < n; i++)
+				wNew[i] = w[i] + s[i];
+			double gs = dot(g, s);
+			double prered = -0.5 * (gs - dot(s, r));
+			double fNew = loss.evaluate(wNew, null);
+			double actred = f - fNew;
+
+			// Update the trust region
+			double snorm = norm(s);
+			if (numIterations == 1)
+				delta = Math.min(delta, snorm);
+			double alpha;
+			if (fNew - f - gs <= 0)
+				alpha = SIGMA3;
+			else
+				alpha = Math.max(SIGMA1, -0.5 * (gs / (fNew - f - gs)));
+			if (actred < ETA0 * prered)
+				delta = Math.min(Math.max(alpha, SIGMA1) * snorm, SIGMA2
+						* delta);
+			else if (actred < ETA1 * prered)
+				delta = Math.max(SIGMA1 * delta, Math.min(alpha * snorm,
+						SIGMA2 * delta));
+			else if (actred < ETA2 * prered)
+				delta = Math.max(SIGMA1 * delta, Math.min(alpha * snorm,
+						SIGMA3 * delta));
+			else
+				delta = Math.max(delta, Math.min(alpha * snorm, SIGMA3
+						* delta));
+
+			if (actred > ETA0 * prered) {
+				System.arraycopy(wNew, 0, w, 0, n);
+				f = fNew;
+				loss.evaluate(w, g);
+				gnorm = norm(g);
+			}
+
+			if (Math.abs(actred) <= 0 && prered <= 0) {
+				LOGGER.log(Level.FINE, "actred and prered <= 0");
+				break;
+			}
+			if (Math.abs(actred) <= 1.0e-12 * Math.abs(f)
+					&& Math.abs(prered) <= 1.0e-12 * Math.abs(f)) {
+				LOGGER.log(Level.FINE, "actred and prered too small");
+				break;
+			}
+		}
+		minFunction = f;
+	}
+
+	/**
+	 * Approximately solves H s = -g within ||s|| <= delta. On return r holds
+	 * the residual -g - H s.
+	 *
+	 * @return the number of conjugate gradient iterations
+	 */
+	private int conjugateGradient(double delta, double[] g, double[] s,
+			double[] r) throws Exception {
+		int n = g.length;
+		double[] d = new double[n], hd = new double[n];
+		for (int i = 0; i < n; i++) {
+			s[i] = 0;
+			r[i] = -g[i];
+			d[i] = r[i];
+		}
+		double cgtol = 0.1 * norm(g);
+		double rTr = dot(r, r);
+		int iterations = 0;
+
+		while (Math.sqrt(rTr) > cgtol) {
+			iterations++;
+			loss.hessianVector(d, hd);
+			double alpha = rTr / dot(d, hd);
+			axpy(alpha, d, s);
+			if (norm(s) > delta) {
+				// Step to the trust region boundary
+				axpy(-alpha, d, s);
+				double std = dot(s, d), sts = dot(s, s), dtd = dot(d, d);
+				double dsq = delta * delta;
+				double rad = Math.sqrt(std * std + dtd * (dsq - sts));
+				if (std >= 0)
+					alpha = (dsq - sts) / (std + rad);
+				else
+					alpha = (rad - std) / dtd;
+				axpy(alpha, d, s);
+				axpy(-alpha, hd, r);
+				break;
+			}
+			axpy(-alpha, hd, r);
+			double rnewTrnew = dot(r, r);
+			double beta = rnewTrnew / rTr;
+			for (int i = 0; i < n; i++)
+				d[i] = r[i] + beta * d[i];
+			rTr = rnewTrnew;
+		}
+		return iterations;
+	}
+
+	private static double dot(double[] a, double[] b) {
+		double sum = 0d;
+		for (int i = 0; i < a.length; i++)
+			sum += a[i] * b[i];
+		return sum;
+	}
+
+	private static double norm(double[] a) {
+		return Math.sqrt(dot(a, a));
+	}
+
+	/** y += alpha * x */
+	private static void axpy(double alpha, double[] x, double[] y) {
+		for (int i = 0; i < x.length; i++)
+			y[i] += alpha * x[i];
+	}
+}
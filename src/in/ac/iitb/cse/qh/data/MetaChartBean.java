@@ -4,11 +4,10 @@ import in.ac.iitb.cse.qh.util.BeanFinder;
 import in.ac.iitb.cse.qh.util.MetaConstants;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -88,12 +87,12 @@ public class MetaChartBean {
 			file = new DefaultStreamedContent(stream, "text/plain",
 					"downloaded_model.dat");
 
-			ObjectOutputStream oos = new ObjectOutputStream(
-					new FileOutputStream(MetaConstants.MODEL_DOWNLOAD_PATH
-							+ "nodeModel.model"));
-			oos.writeObject(selectedModel.getProxy().getClassifier());
-			oos.flush();
-			oos.close();
+			selectedModel
+					.getProxy()
+					.getClassifier()
+					.saveModel(
+							new File(MetaConstants.MODEL_DOWNLOAD_PATH
+									+ "nodeModel.model"));
 		}
 		selected = true;
 	}
@@ -0,0 +1,385 @@
+package in.ac.iitb.cse.qh.linalg;
+
+import in.ac.iitb.cse.qh.util.ParallelUtil;
+import in.ac.iitb.cse.qh.util.VectorKernels;
+
+import java.util.Arrays;
+
+/**
+ * Pure Java backend working in place on row-major {@link DenseMatrix}
+ * storage. Cholesky reads and writes only the lower triangle; it is
+ * right-looking and blocked, so that the O(n^3) trailing update runs as dot
+ * products of contiguous row segments that stay in cache. LU uses partial
+ * pivoting and row axpys; products are blocked over the inner dimension.
+ * Large updates are split over rows into shards run by {@link ParallelUtil}.
+ */
+public class BlockedBackend implements LinearAlgebra.Backend {
+	/** Columns in a block of the Cholesky panel and of the GEMM inner loop */
+	private static final int BLOCK = 64;
+
+	/** Columns of b in a block of GEMM */
+	private static final int COLUMN_BLOCK = 256;
+
+	/** Multiply-adds below which an update runs in the calling thread */
+	private static final long PARALLEL_WORK = 1L << 16;
+
+	private int numThreads = ParallelUtil.getDefaultThreads();
+
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
+
+	private int numShards(int n, long work) {
+		if (numThreads <= 1 || work < PARALLEL_WORK)
+			return 1;
+		return Math.max(1, Math.min(n, numThreads * 4));
+	}
+
+	private static void run(int n, int numShards, ParallelUtil.ShardTask task) {
+		try {
+			ParallelUtil.runShards(n, numShards, task);
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			// the tasks here throw no checked exceptions
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void checkSquare(DenseMatrix a) {
+		if (a.numRows() != a.numColumns())
+			throw new IllegalArgumentException("Matrix is not square.");
+	}
+
+	@Override
+	public Factorization cholesky(DenseMatrix a) {
+		checkSquare(a);
+		final int n = a.numRows();
+		final double[] l = a.getData();
+		for (int kb = 0; kb < n; kb += BLOCK) {
+			final int from = kb;
+			final int to = Math.min(n, kb + BLOCK);
+
+			// Diagonal block, already updated by the blocks to its left
+			for (int j = from; j < to; j++) {
+				for (int i = j; i < to; i++) {
+					double s = l[i * n + j]
+							- VectorKernels.dot(l, i * n + from, l, j * n + from,
+									j - from);
+					if (i == j) {
+						if (!(s > 0))
+							return null;
+						l[j * n + j] = Math.sqrt(s);
+					} else
+						l[i * n + j] = s / l[j * n + j];
+				}
+			}
+			if (to == n)
+				break;
+
+			// Panel below it, L21 = A21 L11^-T, row by row
+			final int rest = n - to;
+			run(rest, numShards(rest, (long) rest * BLOCK * BLOCK),
+					new ParallelUtil.ShardTask() {
+						@Override
+						public void run(int shard, int start, int end) {
+							for (int i = to + start; i < to + end; i++)
+								for (int j = from; j < to; j++)
+									l[i * n + j] = (l[i * n + j] - VectorKernels
+											.dot(l, i * n + from, l, j * n
+													+ from, j - from))
+											/ l[j * n + j];
+						}
+					});
+
+			// Trailing lower triangle, A22 -= L21 L21'
+			run(rest, numShards(rest, (long) rest * rest * BLOCK / 2),
+					new ParallelUtil.ShardTask() {
+						@Override
+						public void run(int shard, int start, int end) {
+							int width = to - from;
+							for (int i = to + start; i < to + end; i++)
+								for (int j = to; j <= i; j++)
+									l[i * n + j] -= VectorKernels.dot(l, i * n
+											+ from, l, j * n + from, width);
+						}
+					});
+		}
+		return new CholeskyFactorization(a);
+	}
+
+	/**
+	 * A = L L', with L in the lower triangle of a; the upper triangle is not
+	 * used
+	 */
+	private class CholeskyFactorization implements Factorization {
+		private final DenseMatrix a;
+
+		CholeskyFactorization(DenseMatrix a) {
+			this.a = a;
+		}
+
+		@Override
+		public int size() {
+			return a.numRows();
+		}
+
+		@Override
+		public boolean isCholesky() {
+			return true;
+		}
+
+		@Override
+		public void solve(double[] b) {
+			int n = size();
+			double[] l = a.getData();
+			// L y = b
+			for (int i = 0; i < n; i++)
+				b[i] = (b[i] - VectorKernels.dot(l, i * n, b, 0, i))
+						/ l[i * n + i];
+			// L' x = y, a column of L' at a time
+			for (int i = n - 1; i >= 0; i--) {
+				b[i] /= l[i * n + i];
+				if (b[i] != 0d)
+					VectorKernels.axpy(-b[i], l, i * n, b, 0, i);
+			}
+		}
+
+		@Override
+		public void solve(DenseMatrix b) {
+			final int n = size();
+			if (b.numRows() != n)
+				throw new IllegalArgumentException(
+						"Matrix row dimensions must agree.");
+			final int m = b.numColumns();
+			if (m == 1) {
+				solve(b.getData());
+				return;
+			}
+			final double[] l = a.getData();
+			final double[] x = b.getData();
+			// Columns of b are independent; shards take a range of them
+			run(m, numShards(m, (long) n * n * m), new ParallelUtil.ShardTask() {
+				@Override
+				public void run(int shard, int from, int to) {
+					int width = to - from;
+					for (int i = 0; i < n; i++) {
+						for (int k = 0; k < i; k++)
+							if (l[i * n + k] != 0d)
+								VectorKernels.axpy(-l[i * n + k], x, k * m
+										+ from, x, i * m + from, width);
+						divide(x, i * m + from, width, l[i * n + i]);
+					}
+					for (int i = n - 1; i >= 0; i--) {
+						divide(x, i * m + from, width, l[i * n + i]);
+						for (int k = 0; k < i; k++)
+							if (l[i * n + k] != 0d)
+								VectorKernels.axpy(-l[i * n + k], x, i * m
+										+ from, x, k * m + from, width);
+					}
+				}
+			});
+		}
+
+		@Override
+		public double determinant() {
+			int n = size();
+			double det = 1d;
+			for (int i = 0; i < n; i++)
+				det *= a.get(i, i) * a.get(i, i);
+			return det;
+		}
+	}
+
+	private static void divide(double[] x, int offset, int length, double d) {
+		for (int p = offset; p < offset + length; p++)
+			x[p] /= d;
+	}
+
+	@Override
+	public Factorization lu(DenseMatrix a) {
+		checkSquare(a);
+		final int n = a.numRows();
+		final double[] lu = a.getData();
+		int[] pivot = new int[n];
+		int sign = 1;
+		for (int i = 0; i < n; i++)
+			pivot[i] = i;
+		double[] swap = new double[n];
+		for (int k = 0; k < n; k++) {
+			int p = k;
+			for (int i = k + 1; i < n; i++)
+				if (Math.abs(lu[i * n + k]) > Math.abs(lu[p * n + k]))
+					p = i;
+			if (p != k) {
+				System.arraycopy(lu, p * n, swap, 0, n);
+				System.arraycopy(lu, k * n, lu, p * n, n);
+				System.arraycopy(swap, 0, lu, k * n, n);
+				int t = pivot[p];
+				pivot[p] = pivot[k];
+				pivot[k] = t;
+				sign = -sign;
+			}
+			final double diag = lu[k * n + k];
+			if (diag == 0d)
+				continue;
+			final int row = k;
+			final int rest = n - k - 1;
+			run(rest, numShards(rest, (long) rest * rest),
+					new ParallelUtil.ShardTask() {
+						@Override
+						public void run(int shard, int from, int to) {
+							for (int i = row + 1 + from; i < row + 1 + to; i++) {
+								double f = lu[i * n + row] /= diag;
+								if (f != 0d)
+									VectorKernels.axpy(-f, lu, row * n + row
+											+ 1, lu, i * n + row + 1, n - row
+											- 1);
+							}
+						}
+					});
+		}
+		return new LuFactorization(a, pivot, sign);
+	}
+
+	/**
+	 * P A = L U, with unit lower L and U sharing a
+	 */
+	private class LuFactorization implements Factorization {
+		private final DenseMatrix a;
+		private final int[] pivot;
+		private final int sign;
+
+		LuFactorization(DenseMatrix a, int[] pivot, int sign) {
+			this.a = a;
+			this.pivot = pivot;
+			this.sign = sign;
+		}
+
+		@Override
+		public int size() {
+			return a.numRows();
+		}
+
+		@Override
+		public boolean isCholesky() {
+			return false;
+		}
+
+		private void checkNonsingular() {
+			int n = size();
+			for (int i = 0; i < n; i++)
+				if (a.get(i, i) == 0d)
+					throw new RuntimeException("Matrix is singular.");
+		}
+
+		@Override
+		public void solve(double[] b) {
+			checkNonsingular();
+			int n = size();
+			double[] lu = a.getData();
+			double[] y = new double[n];
+			for (int i = 0; i < n; i++)
+				y[i] = b[pivot[i]];
+			for (int i = 0; i < n; i++)
+				y[i] -= VectorKernels.dot(lu, i * n, y, 0, i);
+			for (int i = n - 1; i >= 0; i--)
+				y[i] = (y[i] - VectorKernels.dot(lu, i * n + i + 1, y, i + 1, n
+						- i - 1))
+						/ lu[i * n + i];
+			System.arraycopy(y, 0, b, 0, n);
+		}
+
+		@Override
+		public void solve(DenseMatrix b) {
+			checkNonsingular();
+			final int n = size();
+			if (b.numRows() != n)
+				throw new IllegalArgumentException(
+						"Matrix row dimensions must agree.");
+			final int m = b.numColumns();
+			if (m == 1) {
+				solve(b.getData());
+				return;
+			}
+			final double[] lu = a.getData();
+			final double[] x = b.getData();
+			double[] permuted = new double[x.length];
+			for (int i = 0; i < n; i++)
+				System.arraycopy(x, pivot[i] * m, permuted, i * m, m);
+			System.arraycopy(permuted, 0, x, 0, x.length);
+			run(m, numShards(m, (long) n * n * m), new ParallelUtil.ShardTask() {
+				@Override
+				public void run(int shard, int from, int to) {
+					int width = to - from;
+					for (int i = 0; i < n; i++)
+						for (int k = 0; k < i; k++)
+							if (lu[i * n + k] != 0d)
+								VectorKernels.axpy(-lu[i * n + k], x, k * m
+										+ from, x, i * m + from, width);
+					for (int i = n - 1; i >= 0; i--) {
+						for (int k = i + 1; k < n; k++)
+							if (lu[i * n + k] != 0d)
+								VectorKernels.axpy(-lu[i * n + k], x, k * m
+										+ from, x, i * m + from, width);
+						divide(x, i * m + from, width, lu[i * n + i]);
+					}
+				}
+			});
+		}
+
+		@Override
+		public double determinant() {
+			double det = sign;
+			for (int i = 0; i < size(); i++)
+				det *= a.get(i, i);
+			return det;
+		}
+	}
+
+	@Override
+	public void gemm(final double alpha, DenseMatrix a, DenseMatrix b,
+			double beta, DenseMatrix c) {
+		final int rows = a.numRows();
+		final int inner = a.numColumns();
+		final int cols = b.numColumns();
+		if (b.numRows() != inner || c.numRows() != rows
+				|| c.numColumns() != cols)
+			throw new IllegalArgumentException("Matrix dimensions must agree.");
+		final double[] x = a.getData();
+		final double[] y = b.getData();
+		final double[] z = c.getData();
+		if (beta == 0d)
+			Arrays.fill(z, 0d);
+		else if (beta != 1d)
+			c.scale(beta);
+		if (alpha == 0d)
+			return;
+		run(rows, numShards(rows, (long) rows * inner * cols),
+				new ParallelUtil.ShardTask() {
+					@Override
+					public void run(int shard, int from, int to) {
+						// A BLOCK x COLUMN_BLOCK panel of b stays in cache
+						// across the shard's rows
+						for (int jb = 0; jb < cols; jb += COLUMN_BLOCK) {
+							int width = Math.min(cols - jb, COLUMN_BLOCK);
+							for (int kb = 0; kb < inner; kb += BLOCK) {
+								int ke = Math.min(inner, kb + BLOCK);
+								for (int i = from; i < to; i++)
+									for (int k = kb; k < ke; k++) {
+										double f = x[i * inner + k];
+										if (f != 0d)
+											VectorKernels.axpy(alpha * f, y, k
+													* cols + jb, z, i * cols
+													+ jb, width);
+									}
+							}
+						}
+					}
+				});
+	}
+}
@@ -0,0 +1,161 @@
+package in.ac.iitb.cse.qh.linalg;
+
+import in.ac.iitb.cse.qh.util.VectorKernels;
+
+import java.util.Arrays;
+
+/**
+ * A dense matrix stored row-major in a single array. Unlike Jama.Matrix the
+ * updates below work in place; {@link #copy()} is explicit.
+ */
+public class DenseMatrix {
+	private final int numRows;
+	private final int numColumns;
+	private final double[] data;
+
+	public DenseMatrix(int numRows, int numColumns) {
+		if ((long) numRows * numColumns > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Matrix of " + numRows + " x "
+					+ numColumns + " is too large");
+		this.numRows = numRows;
+		this.numColumns = numColumns;
+		data = new double[numRows * numColumns];
+	}
+
+	/**
+	 * A copy of a rectangular array of rows
+	 */
+	public DenseMatrix(double[][] a) {
+		this(a.length, a.length > 0 ? a[0].length : 0);
+		for (int i = 0; i < numRows; i++)
+			System.arraycopy(a[i], 0, data, i * numColumns, numColumns);
+	}
+
+	public static DenseMatrix identity(int n) {
+		DenseMatrix m = new DenseMatrix(n, n);
+		for (int i = 0; i < n; i++)
+			m.data[i * n + i] = 1d;
+		return m;
+	}
+
+	/**
+	 * The symmetric matrix whose lower triangle is stored packed, row i
+	 * holding entries (i, 0) .. (i, i)
+	 */
+	public static DenseMatrix fromPacked(double[] packed, int n) {
+		DenseMatrix m = new DenseMatrix(n, n);
+		for (int i = 0, p = 0; i < n; i++)
+			for (int j = 0; j <= i; j++, p++) {
+				m.data[i * n + j] = packed[p];
+				m.data[j * n + i] = packed[p];
+			}
+		return m;
+	}
+
+	public int numRows() {
+		return numRows;
+	}
+
+	public int numColumns() {
+		return numColumns;
+	}
+
+	/**
+	 * The backing row-major array; entry (i, j) is at i * numColumns() + j
+	 */
+	public double[] getData() {
+		return data;
+	}
+
+	public double get(int i, int j) {
+		return data[i * numColumns + j];
+	}
+
+	public void set(int i, int j, double value) {
+		data[i * numColumns + j] = value;
+	}
+
+	public void add(int i, int j, double value) {
+		data[i * numColumns + j] += value;
+	}
+
+	public DenseMatrix copy() {
+		DenseMatrix m = new DenseMatrix(numRows, numColumns);
+		System.arraycopy(data, 0, m.data, 0, data.length);
+		return m;
+	}
+
+	public double[][] toArray() {
+		double[][] a = new double[numRows][];
+		for (int i = 0; i < numRows; i++)
+			a[i] = Arrays.copyOfRange(data, i * numColumns, (i + 1)
+					* numColumns);
+		return a;
+	}
+
+	public double[] getColumn(int j) {
+		double[] c = new double[numRows];
+		for (int i = 0; i < numRows; i++)
+			c[i] = data[i * numColumns + j];
+		return c;
+	}
+
+	public void scale(double alpha) {
+		for (int p = 0; p < data.length; p++)
+			data[p] *= alpha;
+	}
+
+	/**
+	 * this = this diag(s)
+	 */
+	public void scaleColumns(double[] s) {
+		for (int i = 0; i < numRows; i++)
+			for (int j = 0, p = i * numColumns; j < numColumns; j++, p++)
+				data[p] *= s[j];
+	}
+
+	/**
+	 * this x
+	 */
+	public double[] times(double[] x) {
+		double[] y = new double[numRows];
+		for (int i = 0; i < numRows; i++)
+			y[i] = VectorKernels.dot(data, i * numColumns, x, 0, numColumns);
+		return y;
+	}
+
+	/**
+	 * this' x
+	 */
+	public double[] transposeTimes(double[] x) {
+		double[] y = new double[numColumns];
+		for (int i = 0; i < numRows; i++)
+			if (x[i] != 0d)
+				VectorKernels.axpy(x[i], data, i * numColumns, y, 0,
+						numColumns);
+		return y;
+	}
+
+	/**
+	 * Whether this is square and equal to its transpose
+	 */
+	public boolean isSymmetric() {
+		if (numRows != numColumns)
+			return false;
+		for (int i = 0; i < numRows; i++)
+			for (int j = 0; j < i; j++)
+				if (data[i * numColumns + j] != data[j * numColumns + i])
+					return false;
+		return true;
+	}
+
+	/**
+	 * Whether every entry is finite
+	 */
+	public boolean isFinite() {
+		for (double v : data)
+			if (Double.isNaN(v) || Double.isInfinite(v))
+				return false;
+		return true;
+	}
+}
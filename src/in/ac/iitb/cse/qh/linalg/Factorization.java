@@ -0,0 +1,26 @@
+package in.ac.iitb.cse.qh.linalg;
+
+/**
+ * A factorisation of a square matrix A, by Cholesky or LU, for solving
+ * systems with it
+ */
+public interface Factorization {
+	int size();
+
+	/**
+	 * Whether this is a Cholesky factorisation, so A is positive definite
+	 */
+	boolean isCholesky();
+
+	/**
+	 * Solves A x = b, overwriting b with x
+	 */
+	void solve(double[] b);
+
+	/**
+	 * Solves A X = B, overwriting B with X
+	 */
+	void solve(DenseMatrix b);
+
+	double determinant();
+}
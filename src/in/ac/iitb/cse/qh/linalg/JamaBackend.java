@@ -0,0 +1,104 @@
+package in.ac.iitb.cse.qh.linalg;
+
+import Jama.CholeskyDecomposition;
+import Jama.LUDecomposition;
+import Jama.Matrix;
+
+/**
+ * Backend on Jama, kept as the reference for {@link BlockedBackend}. It
+ * copies its arguments into Jama matrices and leaves them unchanged.
+ */
+public class JamaBackend implements LinearAlgebra.Backend {
+
+	private static Matrix toJama(DenseMatrix a) {
+		return new Matrix(a.toArray());
+	}
+
+	private static void copyInto(Matrix from, DenseMatrix to) {
+		double[][] a = from.getArray();
+		for (int i = 0; i < a.length; i++)
+			System.arraycopy(a[i], 0, to.getData(), i * to.numColumns(),
+					to.numColumns());
+	}
+
+	@Override
+	public Factorization cholesky(DenseMatrix a) {
+		final int n = a.numRows();
+		final CholeskyDecomposition chol = new CholeskyDecomposition(toJama(a));
+		if (!chol.isSPD())
+			return null;
+		return new Factorization() {
+			@Override
+			public int size() {
+				return n;
+			}
+
+			@Override
+			public boolean isCholesky() {
+				return true;
+			}
+
+			@Override
+			public void solve(double[] b) {
+				double[] x = chol.solve(new Matrix(b, n)).getColumnPackedCopy();
+				System.arraycopy(x, 0, b, 0, n);
+			}
+
+			@Override
+			public void solve(DenseMatrix b) {
+				copyInto(chol.solve(toJama(b)), b);
+			}
+
+			@Override
+			public double determinant() {
+				Matrix l = chol.getL();
+				double det = 1d;
+				for (int i = 0; i < n; i++)
+					det *= l.get(i, i) * l.get(i, i);
+				return det;
+			}
+		};
+	}
+
+	@Override
+	public Factorization lu(DenseMatrix a) {
+		final int n = a.numRows();
+		final LUDecomposition lu = new LUDecomposition(toJama(a));
+		return new Factorization() {
+			@Override
+			public int size() {
+				return n;
+			}
+
+			@Override
+			public boolean isCholesky() {
+				return false;
+			}
+
+			@Override
+			public void solve(double[] b) {
+				double[] x = lu.solve(new Matrix(b, n)).getColumnPackedCopy();
+				System.arraycopy(x, 0, b, 0, n);
+			}
+
+			@Override
+			public void solve(DenseMatrix b) {
+				copyInto(lu.solve(toJama(b)), b);
+			}
+
+			@Override
+			public double determinant() {
+				return lu.det();
+			}
+		};
+	}
+
+	@Override
+	public void gemm(double alpha, DenseMatrix a, DenseMatrix b, double beta,
+			DenseMatrix c) {
+		Matrix product = toJama(a).times(toJama(b)).timesEquals(alpha);
+		if (beta != 0d)
+			product.plusEquals(toJama(c).timesEquals(beta));
+		copyInto(product, c);
+	}
+}
@@ -0,0 +1,85 @@
+package in.ac.iitb.cse.qh.linalg;
+
+import in.ac.iitb.cse.qh.util.MetaConstants;
+
+/**
+ * The dense linear algebra of hyperparameter learning: factorisations,
+ * solves and matrix products. They run on {@link BlockedBackend}, a
+ * cache-blocked, multi-threaded implementation that works in place, or on
+ * {@link JamaBackend}, which wraps Jama and is kept as the reference, if
+ * MetaConstants.JAMA_LINEAR_ALGEBRA is set. Another backend can be plugged
+ * in with {@link #setBackend(Backend)}.
+ */
+public class LinearAlgebra {
+
+	/**
+	 * The operations a backend provides
+	 */
+	public interface Backend {
+		/**
+		 * Cholesky factorisation of a symmetric matrix. It may overwrite
+		 * the lower triangle of a, diagonal included, but must leave the
+		 * strict upper triangle as it was, so that a can be restored if
+		 * it is not positive definite.
+		 *
+		 * @return the factorisation, or null if a is not numerically
+		 *         positive definite
+		 */
+		Factorization cholesky(DenseMatrix a);
+
+		/**
+		 * LU factorisation with partial pivoting, which may overwrite a
+		 */
+		Factorization lu(DenseMatrix a);
+
+		/**
+		 * c = alpha a b + beta c
+		 */
+		void gemm(double alpha, DenseMatrix a, DenseMatrix b, double beta,
+				DenseMatrix c);
+	}
+
+	private static Backend backend = MetaConstants.JAMA_LINEAR_ALGEBRA ? new JamaBackend()
+			: new BlockedBackend();
+
+	public static Backend getBackend() {
+		return backend;
+	}
+
+	public static void setBackend(Backend backend) {
+		LinearAlgebra.backend = backend;
+	}
+
+	/**
+	 * Factorises a by Cholesky if it is symmetric positive definite,
+	 * otherwise by LU, overwriting a either way. Cholesky runs in place and
+	 * only the diagonal is saved: if it fails, the lower triangle is
+	 * restored from the upper one for LU, so no second D x D copy is made.
+	 */
+	public static Factorization factorize(DenseMatrix a) {
+		if (!a.isSymmetric())
+			return backend.lu(a);
+		int n = a.numRows();
+		double[] diag = new double[n];
+		for (int i = 0; i < n; i++)
+			diag[i] = a.get(i, i);
+		Factorization f = backend.cholesky(a);
+		if (null != f)
+			return f;
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < i; j++)
+				a.set(i, j, a.get(j, i));
+			a.set(i, i, diag[i]);
+		}
+		return backend.lu(a);
+	}
+
+	/**
+	 * a b, in a new matrix
+	 */
+	public static DenseMatrix times(DenseMatrix a, DenseMatrix b) {
+		DenseMatrix c = new DenseMatrix(a.numRows(), b.numColumns());
+		backend.gemm(1d, a, b, 0d, c);
+		return c;
+	}
+}
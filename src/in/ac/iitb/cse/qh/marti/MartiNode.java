@@ -1,5 +1,6 @@
 package in.ac.iitb.cse.qh.marti;
 
+import in.ac.iitb.cse.qh.classifiers.ModifiedLogistic;
 import in.ac.iitb.cse.qh.data.ConfusionMatrix;
 import in.ac.iitb.cse.qh.data.CurrentState;
 import in.ac.iitb.cse.qh.data.InputData;
@@ -171,6 +172,9 @@ public class MartiNode {
 		outData.display();
 		LOGGER.log(Level.INFO, "Prob Pos " + prob_pos + ", Prob Neg "
 				+ prob_neg);
+		if (m_log instanceof ModifiedLogistic)
+			LOGGER.log(Level.INFO, "Non-zero weights "
+					+ ((ModifiedLogistic) m_log).getNumNonZeroWeights());
 	}
 
 	public ConfusionMatrix getHoldoutConfusionMatrix() {
@@ -473,11 +477,26 @@ public class MartiNode {
 		double classLabel = 0.0d;
 		double[] dist = null;
 		Instance instance = null;
-		for (int i = 0; i < instancesToClassify.numInstances(); i++) {
+		// Score the whole block at once if the classifier supports it
+		int n = instancesToClassify.numInstances();
+		double[] prob = null;
+		double[] margins = null;
+		if (m_log instanceof ModifiedLogistic) {
+			prob = new double[n];
+			margins = new double[n];
+			((ModifiedLogistic) m_log).scoreBatch(instancesToClassify, prob,
+					margins);
+			dist = new double[2];
+		}
+		for (int i = 0; i < n; i++) {
 			instance = instancesToClassify.instance(i);
 			try {
 				//classLabel = m_log.classifyInstance(instance);
-				dist = m_log.distributionForInstance(instance);
+				if (null != prob) {
+					dist[0] = ModifiedLogistic.negativeProbability(margins[i]);
+					dist[1] = prob[i];
+				} else
+					dist = m_log.distributionForInstance(instance);
 				classLabel = dist[0] >= dist[1] ? 0 : 1;
 				if (Utils.eq(classLabel, 1.0)) {
 					if (MetaConstants.CONFIDENCE_BASED_REWEIGHTING)
@@ -1,10 +1,14 @@
 package in.ac.iitb.cse.qh.meta;
 
+import in.ac.iitb.cse.qh.classifiers.DesignMatrix;
+import in.ac.iitb.cse.qh.classifiers.FeatureHasher;
+import in.ac.iitb.cse.qh.classifiers.FeatureMatrix;
 import in.ac.iitb.cse.qh.classifiers.ModifiedLogistic;
 import in.ac.iitb.cse.qh.data.ConfusionMatrix;
 import in.ac.iitb.cse.qh.data.InputData;
 import in.ac.iitb.cse.qh.data.InputPredictionInstance;
 import in.ac.iitb.cse.qh.data.ModelParams;
+import in.ac.iitb.cse.qh.util.MetaConstants;
 import in.ac.iitb.cse.qh.util.WekaUtil;
 
 import java.util.ArrayList;
@@ -24,6 +28,15 @@ public class ClassifierProxy {
 	private String hPath;
 	private Instances trainInstances;
 	private Instances holdoutInstances;
+	private int numThreads = 1;
+	private boolean sparse;
+	private int solver = ModifiedLogistic.SOLVER_BFGS;
+	private boolean floatPrecision = MetaConstants.FLOAT_PRECISION;
+	private double l1Penalty = MetaConstants.L1_PENALTY;
+	private int hashBuckets = MetaConstants.HASH_BUCKETS;
+
+	/** Holdout instances in the columns of the weights, built on demand */
+	private FeatureMatrix holdoutFeatures;
 
 	static {
 		logger.setLevel(Level.INFO);
@@ -44,6 +57,13 @@ public class ClassifierProxy {
 		if (null == mlrClassifier) {
 			logger.log(Level.FINE, "creating new instance of classifer");
 			mlrClassifier = new ModifiedLogistic();
+			mlrClassifier.setNumThreads(numThreads);
+			mlrClassifier.setSparse(sparse);
+			mlrClassifier.setSolver(solver);
+			mlrClassifier.setFloatPrecision(floatPrecision);
+			mlrClassifier.setL1Penalty(l1Penalty);
+			if (hashBuckets > 0)
+				mlrClassifier.setFeatureHasher(new FeatureHasher(hashBuckets));
 		}
 		return mlrClassifier;
 	}
@@ -70,6 +90,7 @@ public class ClassifierProxy {
 			Instances holdoutInstances) throws Exception {
 		this.trainInstances = trainInstances;
 		this.holdoutInstances = holdoutInstances;
+		holdoutFeatures = null;
 		mlrClassifier = null;
 		InputData in = computeNewState(null);
 		// validateTraining(in);
@@ -155,8 +176,11 @@ public class ClassifierProxy {
 		logger.log(Level.FINE, "Number of instances : " + validationSet.size());
 		List<InputPredictionInstance> predInst = new ArrayList<InputPredictionInstance>();
 		ConfusionMatrix confMatrix = new ConfusionMatrix();
-		double dist[][] = new double[validationSet.numInstances()][validationSet
-				.numClasses()];
+		int n = validationSet.numInstances();
+		double dist[][] = new double[n][];
+		double[] prob = new double[n];
+		double[] margins = new double[n];
+		getClassifier().scoreBatch(validationSet, prob, margins);
 
 		int countFN = 0;
 		int countFP = 0;
@@ -167,7 +191,9 @@ public class ClassifierProxy {
 		int i = -1;
 
 		for (Instance instance : validationSet) {
-			dist[++i] = getClassifier().distributionForInstance(instance);
+			++i;
+			dist[i] = new double[] {
+					ModifiedLogistic.negativeProbability(margins[i]), prob[i] };
 
 			pred = dist[i][0] >= dist[i][1] ? 0 : 1;
 			// pred = dist[i][1] > 0 ? 1 : 0;
@@ -221,6 +247,20 @@ public class ClassifierProxy {
 		return getCovariance(diag);
 	}
 
+	/**
+	 * The covariance matrix of {@link #getCovariance(double[])}, ones with
+	 * exp(diag) on the diagonal, as 11' + diag(exp(diag) - 1)
+	 */
+	public DiagonalPlusRankOneMatrix getCovarianceMatrix(double diag[]) {
+		double[] d = new double[diag.length];
+		double[] ones = new double[diag.length];
+		for (int i = 0; i < diag.length; i++) {
+			d[i] = Math.expm1(diag[i]);
+			ones[i] = 1d;
+		}
+		return new DiagonalPlusRankOneMatrix(d, ones, ones);
+	}
+
 	public double[][] getCovariance(double diag[]) {
 		double c[][] = new double[diag.length][diag.length];
 		for (int i = 0; i < diag.length; i++)
@@ -244,6 +284,13 @@ public class ClassifierProxy {
 		return getClassifier().getHessian();
 	}
 
+	/**
+	 * The Hessian in packed lower-triangular storage, without unpacking it
+	 */
+	public double[] getPackedHessian() {
+		return getClassifier().getPackedHessian();
+	}
+
 	/*
 	 * Indicator matrix I as defined in A. Ng's paper. Refer equation (6)
 	 */
@@ -251,6 +298,10 @@ public class ClassifierProxy {
 		return getClassifier().getIndicator();
 	}
 
+	public DiagonalMatrix getIndicatorMatrix() {
+		return new DiagonalMatrix(getClassifier().getIndicatorDiagonal());
+	}
+
 	public double[] getWeights() {
 		return getClassifier().getWeights();
 	}
@@ -259,6 +310,122 @@ public class ClassifierProxy {
 		return getClassifier().getData(index);
 	}
 
+	/**
+	 * The standardised training data the classifier was last built on
+	 */
+	public FeatureMatrix getDesignMatrix() {
+		return getClassifier().getDesignMatrix();
+	}
+
+	/**
+	 * Number of threads the classifier trains with
+	 */
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+		if (null != mlrClassifier)
+			mlrClassifier.setNumThreads(numThreads);
+	}
+
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	/**
+	 * Whether the classifier trains on a sparse (CSR) copy of the data
+	 */
+	public void setSparse(boolean sparse) {
+		this.sparse = sparse;
+		if (null != mlrClassifier)
+			mlrClassifier.setSparse(sparse);
+	}
+
+	public boolean isSparse() {
+		return sparse;
+	}
+
+	/**
+	 * Solver the classifier trains with, see {@link ModifiedLogistic#setSolver}
+	 */
+	public void setSolver(int solver) {
+		this.solver = solver;
+		if (null != mlrClassifier)
+			mlrClassifier.setSolver(solver);
+	}
+
+	public int getSolver() {
+		return solver;
+	}
+
+	/**
+	 * L1 penalty the classifier trains with, see
+	 * {@link ModifiedLogistic#setL1Penalty}; defaults to
+	 * {@link MetaConstants#L1_PENALTY}
+	 */
+	public void setL1Penalty(double l1Penalty) {
+		this.l1Penalty = l1Penalty;
+		if (null != mlrClassifier)
+			mlrClassifier.setL1Penalty(l1Penalty);
+	}
+
+	public double getL1Penalty() {
+		return l1Penalty;
+	}
+
+	/**
+	 * Number of buckets the attributes are hashed into, see
+	 * {@link ModifiedLogistic#setFeatureHasher}; 0 turns hashing off.
+	 * Defaults to {@link MetaConstants#HASH_BUCKETS}. Takes effect from the
+	 * next classifier created.
+	 */
+	public void setHashBuckets(int hashBuckets) {
+		this.hashBuckets = hashBuckets;
+		holdoutFeatures = null;
+	}
+
+	public int getHashBuckets() {
+		return hashBuckets;
+	}
+
+	/**
+	 * The holdout instances as rows of the weights' columns, in attribute
+	 * units: the hashed instances if the classifier hashes its attributes,
+	 * otherwise 1 followed by every attribute value but the last
+	 */
+	public FeatureMatrix getHoldoutFeatures() {
+		if (null == holdoutFeatures) {
+			FeatureHasher hasher = getClassifier().getFeatureHasher();
+			if (null != hasher)
+				holdoutFeatures = hasher.hash(holdoutInstances);
+			else {
+				int n = holdoutInstances.numInstances();
+				int numColumns = holdoutInstances.numAttributes();
+				DesignMatrix rows = new DesignMatrix(n, numColumns);
+				for (int i = 0; i < n; i++) {
+					Instance instance = holdoutInstances.instance(i);
+					rows.set(i, 0, 1);
+					for (int k = 0; k < numColumns - 1; k++)
+						rows.set(i, k + 1, instance.value(k));
+				}
+				holdoutFeatures = rows;
+			}
+		}
+		return holdoutFeatures;
+	}
+
+	/**
+	 * Whether the classifier stores its training data in single precision;
+	 * defaults to {@link MetaConstants#FLOAT_PRECISION}
+	 */
+	public void setFloatPrecision(boolean floatPrecision) {
+		this.floatPrecision = floatPrecision;
+		if (null != mlrClassifier)
+			mlrClassifier.setFloatPrecision(floatPrecision);
+	}
+
+	public boolean isFloatPrecision() {
+		return floatPrecision;
+	}
+
 	public void setTrainingInstances(Instances instances) {
 		this.trainInstances = instances;
 
@@ -266,6 +433,6 @@ public class ClassifierProxy {
 
 	public void setHoldoutInstances(Instances holdoutInstances) {
 		this.holdoutInstances = holdoutInstances;
-
+		holdoutFeatures = null;
 	}
 }
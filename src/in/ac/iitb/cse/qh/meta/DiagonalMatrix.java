@@ -0,0 +1,33 @@
+package in.ac.iitb.cse.qh.meta;
+
+/**
+ * A square matrix that is zero off the diagonal, stored as its diagonal.
+ * Products with it scale the rows or columns of the other operand, for
+ * which {@link #getDiagonal()} is enough.
+ */
+public class DiagonalMatrix {
+	private final double[] diag;
+
+	public DiagonalMatrix(double[] diag) {
+		this.diag = diag;
+	}
+
+	public int size() {
+		return diag.length;
+	}
+
+	public double get(int i) {
+		return diag[i];
+	}
+
+	public double get(int i, int j) {
+		return i == j ? diag[i] : 0d;
+	}
+
+	/**
+	 * The diagonal itself, not a copy
+	 */
+	public double[] getDiagonal() {
+		return diag;
+	}
+}
@@ -0,0 +1,43 @@
+package in.ac.iitb.cse.qh.meta;
+
+import in.ac.iitb.cse.qh.linalg.DenseMatrix;
+
+/**
+ * A square matrix diag(d) + u v', stored as d, u and v. Adding it to a dense
+ * matrix costs O(D^2).
+ */
+public class DiagonalPlusRankOneMatrix {
+	private final DiagonalMatrix diag;
+	private final double[] u;
+	private final double[] v;
+
+	public DiagonalPlusRankOneMatrix(double[] d, double[] u, double[] v) {
+		this.diag = new DiagonalMatrix(d);
+		this.u = u;
+		this.v = v;
+	}
+
+	public int size() {
+		return diag.size();
+	}
+
+	public double get(int i, int j) {
+		return diag.get(i, j) + u[i] * v[j];
+	}
+
+	/**
+	 * m += this, in place
+	 */
+	public void addTo(DenseMatrix m) {
+		int n = u.length;
+		double[] r = m.getData();
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < n; j++)
+				if (i != j)
+					r[i * n + j] += u[i] * v[j];
+			// Summed before adding to m, so diagonal entries of the whole
+			// matrix keep their precision
+			r[i * n + i] += diag.get(i) + u[i] * v[i];
+		}
+	}
+}
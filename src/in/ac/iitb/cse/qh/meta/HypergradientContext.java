@@ -0,0 +1,212 @@
+package in.ac.iitb.cse.qh.meta;
+
+import in.ac.iitb.cse.qh.linalg.DenseMatrix;
+import in.ac.iitb.cse.qh.linalg.Factorization;
+import in.ac.iitb.cse.qh.linalg.LinearAlgebra;
+
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Solves systems with C + H for {@link HyperparameterLearner} across the
+ * iterations of one {@link Optimizer} run. The Hessian H of the training
+ * loss, which takes a pass over the data and O(N D^2) work, is kept for as
+ * long as the classifier holds the same trained weight vector, compared by
+ * identity, since every build makes a new one.
+ *
+ * The factorisation of C + H is kept as well. When only the
+ * hyperparameters change, C + H changes by a diagonal shift, diag(exp(d)) -
+ * diag(exp(d0)). A single right-hand side is then solved by conjugate
+ * gradient preconditioned with the old factorisation, O(D^2) per iteration
+ * instead of O(D^3), and the factorisation is only redone if that does not
+ * converge within MAX_CG_ITERATIONS.
+ */
+public class HypergradientContext implements HypergradientSolver {
+	private static final Logger LOGGER = Logger
+			.getLogger(HypergradientContext.class.getName());
+
+	/** Preconditioned CG iterations before refactorising */
+	private static final int MAX_CG_ITERATIONS = 25;
+
+	/** Relative residual at which preconditioned CG stops */
+	private static final double CG_TOLERANCE = 1e-10;
+
+	private final ClassifierProxy classifier;
+
+	/** Weight vector the Hessian was computed at */
+	private double[] weights;
+	private DenseMatrix hessian;
+
+	/** Hyperparameters and factorisation of C + H at them, if any */
+	private double[] factorParams;
+	private Factorization factor;
+
+	private int numFactorisations;
+	private int numShiftedSolves;
+
+	public HypergradientContext(ClassifierProxy classifier) {
+		this.classifier = classifier;
+	}
+
+	public ClassifierProxy getClassifier() {
+		return classifier;
+	}
+
+	@Override
+	public double[] computeHypergradient(double[] hyper, double[] g) {
+		return new HyperparameterLearner(this).computeHypergradient(hyper, g);
+	}
+
+	/**
+	 * The weights of the classifier, recomputing the Hessian and dropping
+	 * the factorisation if they are not the ones cached
+	 */
+	double[] getWeights() {
+		double[] current = classifier.getWeights();
+		if (current != weights) {
+			hessian = DenseMatrix.fromPacked(classifier.getPackedHessian(),
+					current.length);
+			if (!hessian.isFinite())
+				for (int i = 0; i < hessian.numRows(); i++)
+					for (int j = 0; j < hessian.numColumns(); j++)
+						if (Double.isInfinite(hessian.get(i, j))
+								|| Double.isNaN(hessian.get(i, j)))
+							LOGGER.log(Level.WARNING, "Hessian at " + i + ","
+									+ j + " is Infinite/NAN!! "
+									+ hessian.get(i, j));
+			weights = current;
+			factorParams = null;
+			factor = null;
+		}
+		return weights;
+	}
+
+	/**
+	 * Solves (C + H) x = b, with C the covariance matrix of the
+	 * hyperparameters hyper, overwriting b with x
+	 */
+	void solve(double[] hyper, double[] b) {
+		getWeights();
+		if (null != factorParams && !Arrays.equals(hyper, factorParams)) {
+			double[] x = solveShifted(hyper, b);
+			if (null != x) {
+				System.arraycopy(x, 0, b, 0, x.length);
+				return;
+			}
+		}
+		if (null == factorParams || !Arrays.equals(hyper, factorParams))
+			factorise(hyper);
+		factor.solve(b);
+	}
+
+	/**
+	 * Solves (C + H) X = b, overwriting b with X
+	 */
+	void solve(double[] hyper, DenseMatrix b) {
+		getWeights();
+		if (null == factorParams || !Arrays.equals(hyper, factorParams))
+			factorise(hyper);
+		factor.solve(b);
+	}
+
+	/**
+	 * Factorises C + H by Cholesky, as it is positive definite in exact
+	 * arithmetic, or by LU if rounding on an ill-conditioned Hessian breaks
+	 * that
+	 */
+	private void factorise(double[] hyper) {
+		DiagonalPlusRankOneMatrix cov = classifier.getCovarianceMatrix(hyper);
+		for (int i = 0; i < cov.size(); i++)
+			if (Double.isInfinite(cov.get(i, i)) || Double.isNaN(cov.get(i, i)))
+				LOGGER.log(Level.WARNING, "Covariance at " + i + "," + i
+						+ " is Infinite/NAN!! " + cov.get(i, i));
+		DenseMatrix a = hessian.copy();
+		cov.addTo(a);
+		numFactorisations++;
+		factorParams = hyper.clone();
+		factor = LinearAlgebra.factorize(a);
+		if (!factor.isCholesky())
+			LOGGER.log(Level.FINE, "C + H is not positive definite, using LU");
+		if (LOGGER.isLoggable(Level.FINE))
+			LOGGER.log(Level.FINE, "Determinant=" + factor.determinant());
+	}
+
+	/**
+	 * Solves (C + H) x = b at hyperparameters hyper by conjugate gradient,
+	 * preconditioned with the factorisation at factorParams
+	 *
+	 * @return x, or null if CG did not converge
+	 */
+	private double[] solveShifted(double[] hyper, double[] b) {
+		int n = b.length;
+		double[] diag = new double[n];
+		for (int i = 0; i < n; i++)
+			diag[i] = Math.expm1(hyper[i]);
+
+		double[] x = new double[n];
+		double[] r = b.clone();
+		double[] z = precondition(r);
+		double[] p = z.clone();
+		double rz = dot(r, z);
+		double bNorm = Math.sqrt(dot(b, b));
+		if (bNorm == 0)
+			return x;
+		for (int it = 0; it < MAX_CG_ITERATIONS; it++) {
+			// q = (H + 11' + diag(exp(d) - 1)) p
+			double sum = 0d;
+			for (int i = 0; i < n; i++)
+				sum += p[i];
+			double[] q = hessian.times(p);
+			for (int i = 0; i < n; i++)
+				q[i] += sum + diag[i] * p[i];
+			double pq = dot(p, q);
+			if (!(pq > 0))
+				return null;
+			double alpha = rz / pq;
+			for (int i = 0; i < n; i++) {
+				x[i] += alpha * p[i];
+				r[i] -= alpha * q[i];
+			}
+			if (Math.sqrt(dot(r, r)) <= CG_TOLERANCE * bNorm) {
+				numShiftedSolves++;
+				return x;
+			}
+			z = precondition(r);
+			double rzNext = dot(r, z);
+			double beta = rzNext / rz;
+			rz = rzNext;
+			for (int i = 0; i < n; i++)
+				p[i] = z[i] + beta * p[i];
+		}
+		LOGGER.log(Level.FINE, "Shifted solve did not converge, refactorising");
+		return null;
+	}
+
+	private double[] precondition(double[] r) {
+		double[] z = r.clone();
+		factor.solve(z);
+		return z;
+	}
+
+	private static double dot(double[] a, double[] b) {
+		double sum = 0d;
+		for (int i = 0; i < a.length; i++)
+			sum += a[i] * b[i];
+		return sum;
+	}
+
+	/**
+	 * Number of times C + H was factorised
+	 */
+	public int getNumFactorisations() {
+		return numFactorisations;
+	}
+
+	/**
+	 * Number of solves done by preconditioned CG on an old factorisation
+	 */
+	public int getNumShiftedSolves() {
+		return numShiftedSolves;
+	}
+}
@@ -0,0 +1,10 @@
+package in.ac.iitb.cse.qh.meta;
+
+/**
+ * Computes the gradient of a function of the trained weights with respect
+ * to the hyperparameters, J_d' g = -B (C + H)^-1 g, from its gradient g
+ * with respect to the weights; see {@link HyperparameterLearner}
+ */
+public interface HypergradientSolver {
+	double[] computeHypergradient(double[] hyper, double[] g);
+}
@@ -1,16 +1,15 @@
 package in.ac.iitb.cse.qh.meta;
 
+import in.ac.iitb.cse.qh.linalg.DenseMatrix;
+
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import Jama.Matrix;
-
 public class HyperparameterLearner {
-	private double[][] cov; // n x n
-	private double[][] hessian; // n x n
+	private final HypergradientContext context;
 	private double[] weights; // n
 	private double[] params; // k
-	private double[][] indicator; // n x k
+	private DiagonalMatrix indicator; // n x k, k = n
 	private int numWeights; // n
 	private int numParams; // k
 
@@ -18,66 +17,68 @@ public class HyperparameterLearner {
 			.getLogger(HyperparameterLearner.class.getName());
 
 	public HyperparameterLearner(ClassifierProxy classifier, double[] hyper) {
-		cov = classifier.getCovariance(hyper);
-		hessian = classifier.getHessian();
-		weights = classifier.getWeights();
-		indicator = classifier.getIndicator();
+		this(new HypergradientContext(classifier));
+	}
+
+	/**
+	 * Uses the Hessian and factorisation cached in context, which stays
+	 * valid while the classifier keeps its trained weights
+	 */
+	public HyperparameterLearner(HypergradientContext context) {
+		this.context = context;
+		weights = context.getWeights();
+		indicator = context.getClassifier().getIndicatorMatrix();
 		numWeights = weights.length;
+		for (int i = 0; i < indicator.size(); i++)
+			if (Double.isInfinite(indicator.get(i))
+					|| Double.isNaN(indicator.get(i)))// || matB.get(i, i)==0)
+				LOGGER.log(Level.WARNING, "Hessian at " + i + "," + i
+						+ " is Infinite/NAN!! " + indicator.get(i));
 	}
 
 	/*
-	 * Returns the n x k Jacobian matrix J_d whose (i, j)th entry is dw_i/dd_j
+	 * Returns the n x k Jacobian matrix J_d whose (i, j)th entry is dw_i/dd_j,
+	 * -(C + H)^-1 B. C is ones plus a diagonal and B is diagonal, so only the
+	 * solve with C + H costs O(n^3).
 	 */
-	public Matrix computeJacobian(double[] hyper) {
+	public DenseMatrix computeJacobian(double[] hyper) {
 		params = hyper;
 		numParams = params.length;
-		Matrix result = null;
-		// double[][] b = new double[numWeights][numParams];
-		// for (int i = 0; i < numWeights; i++)
-		// for (int j = 0; j < numParams; j++) {
-		// System.out.println("ind: " + indicator[i][j]);
-		// // b[i][j] = indicator[i][j] * weights[i] * Math.exp(params[j]);
-		// // System.out.println("b: " + b[i][j]);
-		// }
-		Matrix matB = new Matrix(indicator);
-		Matrix matC = new Matrix(cov);
-		Matrix matH = new Matrix(hessian);
-		for (int i = 0; i < matH.getRowDimension(); i++)
-			for (int j = 0; j < matH.getColumnDimension(); j++)
-				if (Double.isInfinite(matH.get(i, j))
-						|| Double.isNaN(matH.get(i, j)))// || matH.get(i, j)==0)
-					LOGGER.log(Level.WARNING, "Hessian at " + i + "," + j
-							+ " is Infinite/NAN!! " + matH.get(i, j));
-
-		for (int i = 0; i < matC.getRowDimension(); i++)
-			for (int j = 0; j < matC.getColumnDimension(); j++)
-				if (Double.isInfinite(matC.get(i, j))
-						|| Double.isNaN(matC.get(i, j)))// || matC.get(i, j)==0)
-					LOGGER.log(Level.WARNING, "Hessian at " + i + "," + j
-							+ " is Infinite/NAN!! " + matC.get(i, j));
-
-		for (int i = 0; i < matB.getRowDimension(); i++)
-			for (int j = 0; j < matB.getColumnDimension(); j++)
-				if (Double.isInfinite(matB.get(i, j))
-						|| Double.isNaN(matB.get(i, j)))// || matB.get(i, j)==0)
-					LOGGER.log(Level.WARNING, "Hessian at " + i + "," + j
-							+ " is Infinite/NAN!! " + matB.get(i, j));
-
-		LOGGER.log(Level.FINE, "Determinant=" + matC.plus(matH).det());
-		result = matC.plus(matH).inverse().times(matB).times(-1.0d);
-		for (int i = 0; i < result.getRowDimension(); i++)
-			for (int j = 0; j < result.getColumnDimension(); j++) {
+		DenseMatrix result = DenseMatrix.identity(numWeights);
+		context.solve(params, result);
+		// (C + H)^-1 B: B multiplies from the right, scaling columns
+		result.scaleColumns(indicator.getDiagonal());
+		result.scale(-1.0d);
+		for (int i = 0; i < result.numRows(); i++)
+			for (int j = 0; j < result.numColumns(); j++) {
 				if (Double.isNaN(result.get(i, j)))
 					LOGGER.log(Level.WARNING,
 							"jacobian is NAN!! " + result.get(i, j));
 				if (Double.isInfinite(result.get(i, j)))
 					LOGGER.log(Level.WARNING, "jacobian is Infinite!! "
 							+ result.get(i, j));
-				if (Double.isNaN(matB.get(i, j))
-						|| Double.isInfinite(matB.get(i, j)))
-					LOGGER.log(Level.WARNING,
-							"matB is Infinite!! " + matB.get(i, j));
 			}
 		return result;
 	}
+
+	/**
+	 * Returns J_d' g, the gradient with respect to the hyperparameters of a
+	 * function whose gradient with respect to the weights is g, without
+	 * forming J_d. C + H is symmetric, so J_d' g = -B (C + H)^-1 g: one solve
+	 * against g and a scaling by the diagonal of B.
+	 */
+	public double[] computeHypergradient(double[] hyper, double[] g) {
+		params = hyper;
+		numParams = params.length;
+		double[] v = g.clone();
+		context.solve(params, v);
+		double[] result = new double[numWeights];
+		for (int i = 0; i < numWeights; i++) {
+			result[i] = -indicator.get(i) * v[i];
+			if (Double.isNaN(result[i]) || Double.isInfinite(result[i]))
+				LOGGER.log(Level.WARNING, "hypergradient at " + i
+						+ " is Infinite/NAN!! " + result[i]);
+		}
+		return result;
+	}
 }
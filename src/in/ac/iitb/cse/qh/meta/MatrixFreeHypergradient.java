@@ -0,0 +1,163 @@
+package in.ac.iitb.cse.qh.meta;
+
+import in.ac.iitb.cse.qh.classifiers.HessianBuilder;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hypergradient for feature sets too wide for the dense Hessian. (C + H) v =
+ * g is solved by conjugate gradient with a diagonal (Jacobi)
+ * preconditioner; every iteration takes one Hessian-vector product, a pass
+ * over the training data, and C = 11' + diag(exp(d) - 1) is applied in
+ * O(D). Memory is O(D) besides the data. The sigmoid weights of the Hessian
+ * and the last solution, the starting point of the next solve, are kept
+ * while the classifier holds the same trained weight vector.
+ */
+public class MatrixFreeHypergradient implements HypergradientSolver {
+	private static final Logger LOGGER = Logger
+			.getLogger(MatrixFreeHypergradient.class.getName());
+
+	private final ClassifierProxy classifier;
+
+	private int maxIterations = 100;
+
+	/** Relative residual at which CG stops */
+	private double tolerance = 1e-8;
+
+	/** Weight vector the cached values belong to */
+	private double[] weights;
+	private HessianBuilder hessian;
+	private double[] sigmoidWeights;
+	private double[] hessianDiagonal;
+	private double[] lastSolution;
+
+	private int numIterations;
+
+	public MatrixFreeHypergradient(ClassifierProxy classifier) {
+		this.classifier = classifier;
+	}
+
+	public void setMaxIterations(int maxIterations) {
+		this.maxIterations = maxIterations;
+	}
+
+	public void setTolerance(double tolerance) {
+		this.tolerance = tolerance;
+	}
+
+	/**
+	 * CG iterations, and so passes over the data, of the last solve
+	 */
+	public int getNumIterations() {
+		return numIterations;
+	}
+
+	@Override
+	public double[] computeHypergradient(double[] hyper, double[] g) {
+		double[] current = classifier.getWeights();
+		if (current != weights) {
+			hessian = new HessianBuilder(classifier.getDesignMatrix());
+			sigmoidWeights = hessian.sigmoidWeights(current);
+			hessianDiagonal = hessian.diagonal(sigmoidWeights);
+			lastSolution = null;
+			weights = current;
+		}
+		double[] v = solve(hyper, g);
+
+		double[] indicator = classifier.getIndicatorMatrix().getDiagonal();
+		double[] result = new double[v.length];
+		for (int i = 0; i < v.length; i++) {
+			result[i] = -indicator[i] * v[i];
+			if (Double.isNaN(result[i]) || Double.isInfinite(result[i]))
+				LOGGER.log(Level.WARNING, "hypergradient at " + i
+						+ " is Infinite/NAN!! " + result[i]);
+		}
+		return result;
+	}
+
+	/**
+	 * Solves (C + H) x = b by Jacobi-preconditioned CG, starting from the
+	 * last solution, and keeps x as the start of the next solve
+	 */
+	private double[] solve(double[] hyper, double[] b) {
+		int n = b.length;
+		double bNorm = Math.sqrt(dot(b, b));
+		numIterations = 0;
+		if (bNorm == 0) {
+			// x = 0; the residual test below is relative to bNorm and could
+			// never pass from a warm start
+			lastSolution = null;
+			return new double[n];
+		}
+		double[] shift = new double[n];
+		double[] precond = new double[n];
+		for (int i = 0; i < n; i++) {
+			shift[i] = Math.expm1(hyper[i]);
+			precond[i] = 1 / (hessianDiagonal[i] + 1 + shift[i]);
+		}
+
+		double[] x = new double[n];
+		double[] q = new double[n];
+		double[] r = b.clone();
+		if (null != lastSolution) {
+			x = lastSolution.clone();
+			multiply(shift, x, q);
+			for (int i = 0; i < n; i++)
+				r[i] -= q[i];
+		}
+		double[] z = new double[n];
+		for (int i = 0; i < n; i++)
+			z[i] = precond[i] * r[i];
+		double[] p = z.clone();
+		double rz = dot(r, z);
+
+		while (Math.sqrt(dot(r, r)) > tolerance * bNorm) {
+			if (numIterations == maxIterations) {
+				LOGGER.log(Level.WARNING, "CG stopped after " + numIterations
+						+ " iterations, relative residual "
+						+ Math.sqrt(dot(r, r)) / bNorm);
+				break;
+			}
+			numIterations++;
+			multiply(shift, p, q);
+			double pq = dot(p, q);
+			if (!(pq > 0))
+				break;
+			double alpha = rz / pq;
+			for (int i = 0; i < n; i++) {
+				x[i] += alpha * p[i];
+				r[i] -= alpha * q[i];
+				z[i] = precond[i] * r[i];
+			}
+			double rzNext = dot(r, z);
+			double beta = rzNext / rz;
+			rz = rzNext;
+			for (int i = 0; i < n; i++)
+				p[i] = z[i] + beta * p[i];
+		}
+		LOGGER.log(Level.FINE, "Matrix-free solve took " + numIterations
+				+ " CG iterations");
+		lastSolution = x;
+		return x;
+	}
+
+	/**
+	 * out = (H + 11' + diag(shift)) v
+	 */
+	private void multiply(double[] shift, double[] v, double[] out) {
+		hessian.multiply(sigmoidWeights, v, out);
+		double sum = 0d;
+		for (int i = 0; i < v.length; i++)
+			sum += v[i];
+		for (int i = 0; i < v.length; i++)
+			out[i] += sum + shift[i] * v[i];
+	}
+
+	private static double dot(double[] a, double[] b) {
+		double sum = 0d;
+		for (int i = 0; i < a.length; i++)
+			sum += a[i] * b[i];
+		return sum;
+	}
+}
@@ -1,15 +1,13 @@
 package in.ac.iitb.cse.qh.meta;
 
 import in.ac.iitb.cse.qh.classifiers.ModifiedLogistic;
+import in.ac.iitb.cse.qh.linalg.DenseMatrix;
 
 import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
-
-import Jama.Matrix;
 
 public class MetaModelGenerator {
 	private double[] modelWeights;
@@ -34,11 +32,8 @@ public class MetaModelGenerator {
 	}
 
 	private double[] calculateMetamodelWeights() {
-		Matrix modelWeightsVector = new Matrix(modelWeights, 1);
-		Matrix featureWeightsPerModelMatrix = new Matrix(featureWeightsPerModel);
-		Matrix metaModelWeightsVector = modelWeightsVector
-				.times(featureWeightsPerModelMatrix);
-		return metaModelWeightsVector.getColumnPackedCopy();
+		return new DenseMatrix(featureWeightsPerModel)
+				.transposeTimes(modelWeights);
 	}
 
 	public ModifiedLogistic generate() {
@@ -49,13 +44,13 @@ public class MetaModelGenerator {
 		return mLogistic;
 	}
 
+	/**
+	 * Writes the model in the compact format of
+	 * {@link ModifiedLogistic#saveModel}, without its training data
+	 */
 	public void serializeModel(ModifiedLogistic model, String filePath)
 			throws FileNotFoundException, IOException {
-		ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(
-				filePath));
-		oos.writeObject(model);
-		oos.flush();
-		oos.close();
+		model.saveModel(new File(filePath));
 	}
 
 	public void serializeModel(ModifiedLogistic model, String filePath,
@@ -1,6 +1,8 @@
 package in.ac.iitb.cse.qh.meta;
 
+import in.ac.iitb.cse.qh.classifiers.FeatureMatrix;
 import in.ac.iitb.cse.qh.classifiers.ModifiedLogistic;
+import in.ac.iitb.cse.qh.classifiers.PreprocessedData;
 import in.ac.iitb.cse.qh.data.ConfusionMatrix;
 import in.ac.iitb.cse.qh.data.CurrentState;
 import in.ac.iitb.cse.qh.data.CurrentStateVector;
@@ -10,9 +12,11 @@ import in.ac.iitb.cse.qh.data.MetaChartBean;
 import in.ac.iitb.cse.qh.data.ModelParams;
 import in.ac.iitb.cse.qh.data.TargetState;
 import in.ac.iitb.cse.qh.data.TargetStateVector;
+import in.ac.iitb.cse.qh.linalg.DenseMatrix;
 import in.ac.iitb.cse.qh.util.BeanFinder;
 import in.ac.iitb.cse.qh.util.KLDivergenceCalculator;
 import in.ac.iitb.cse.qh.util.MetaConstants;
+import in.ac.iitb.cse.qh.util.ParallelUtil;
 import in.ac.iitb.cse.qh.util.WekaUtil;
 
 import java.util.ArrayList;
@@ -25,8 +29,6 @@ import java.util.logging.Logger;
 
 import weka.core.Instance;
 import weka.core.Instances;
-import weka.core.Optimization;
-import Jama.Matrix;
 
 public class Optimizer {
 	protected InputData data;
@@ -39,9 +41,23 @@ public class Optimizer {
 	// private HyperparameterLearner hyperLearner;
 	private ClassifierProxy classifier;
 
-	protected boolean m_Debug;
+	/**
+	 * Computes the hypergradient, reusing its state across gradient
+	 * evaluations; chosen by the number of weights unless set
+	 */
+	private HypergradientSolver hyperSolver;
+
+	/** Holdout rows below which the gradient is summed in one thread */
+	private static final int MIN_SHARD_ROWS = 2048;
 
-	private int m_MaxIts = -1;
+	/**
+	 * Coefficient of every holdout row in the gradient and per-shard sums,
+	 * kept across gradient evaluations
+	 */
+	private double[] holdoutCoef;
+	private double[][] shardGrads;
+
+	protected boolean m_Debug;
 
 	private final static Logger LOGGER = Logger.getLogger(Optimizer.class
 			.getName());
@@ -53,32 +69,6 @@ public class Optimizer {
 		LOGGER.addHandler(consoleHandler);
 	}
 
-	private class OptEng extends Optimization {
-
-		@Override
-		public String getRevision() {
-			// TODO Auto-generated method stub
-			return null;
-		}
-
-		@Override
-		protected double[] evaluateGradient(double[] x) throws Exception {
-			LOGGER.log(Level.FINEST, "Computing Gradient...");
-			double[] grad = computeGradient(x);
-			LOGGER.log(Level.FINEST, "Gradient Computation Finished");
-			return grad;
-
-		}
-
-		@Override
-		protected double objectiveFunction(double[] x) throws Exception {
-			getNewState(x);
-			double kldiv = KLDivergenceCalculator.calculate(cState, tState);
-			LOGGER.log(Level.FINEST, "kldiv=" + kldiv);
-			return kldiv;
-		}
-	}
-
 	public Optimizer(InputData in, CurrentState curr, TargetState target,
 			ClassifierProxy classifier) {
 		LOGGER.log(Level.INFO, "Log level : " + LOGGER.getLevel());
@@ -94,56 +84,69 @@ public class Optimizer {
 	}
 
 	public double[] computeGradient(double[] theta) throws Exception {
-		int numInstances = cState.getTrainingSize();
 		CurrentStateVector[] cStateVectors = cState.getP();
 		TargetStateVector[] tStateVectors = tState.getS();
-		double[][] jacobian = null;
-		Matrix jacMatrix = null;
-
-		Matrix gradMatrix = new Matrix(numWeights, 1); // D x 1
-		double[] grads = new double[numWeights];
-		Arrays.fill(grads, 0.0d);
-		Matrix dataMat = null;
-		double temp = 0.0d;
-		HyperparameterLearner hyperLearner = new HyperparameterLearner(
-				classifier, theta);
-
-		Instances holdoutInstances = classifier.getholdoutInstances();
-		int i = 0;
-		for (Instance instance : holdoutInstances) {
-			double[] instDat = new double[instance.numAttributes()];
-			int j = 1;
-			instDat[0] = 1;
-			for (int k = 0; k < instance.numAttributes() - 1; k++) {
-				instDat[j++] = instance.value(k);
-			}
-
-			dataMat = new Matrix(instDat, 1);
-
-			// //for (int i = 0; i < numInstances; i++) {
-			// jacobian = classifier.computeJacobian(i); // D x M
-			// jacMatrix = new Matrix(jacobian);
-			// //dataMat = new Matrix(classifier.getData(i), 1);
-			// System.out.println("data matrix dimensions: "
-			// + dataMat.getRowDimension() + " x "
-			// + dataMat.getColumnDimension());
+		if (null == hyperSolver) {
+			if (numWeights > MetaConstants.DENSE_HYPERGRADIENT_LIMIT)
+				hyperSolver = new MatrixFreeHypergradient(classifier);
+			else
+				hyperSolver = new HypergradientContext(classifier);
+		}
 
-			temp = tStateVectors[i].getSi()[0] * cStateVectors[i].getPi()[1]
-					- tStateVectors[i].getSi()[1] * cStateVectors[i].getPi()[0];
-			if (Double.isNaN(temp))
+		FeatureMatrix holdout = classifier.getHoldoutFeatures();
+		int numRows = holdout.numRows();
+		if (null == holdoutCoef || holdoutCoef.length != numRows)
+			holdoutCoef = new double[numRows];
+		for (int i = 0; i < numRows; i++) {
+			double[] s = tStateVectors[i].getSi();
+			double[] p = cStateVectors[i].getPi();
+			holdoutCoef[i] = s[0] * p[1] - s[1] * p[0];
+			if (Double.isNaN(holdoutCoef[i]))
 				LOGGER.log(Level.WARNING, "Temp is NAN!!!");
+		}
+		double[] grads = new double[numWeights]; // D x 1
+		accumulateHoldout(holdout, grads);
+		for (int i = 0; i < numWeights; i++)
+			if (Double.isNaN(grads[i]))
+				LOGGER.log(Level.WARNING, String.valueOf(grads[i]));
+		// J' grads by one solve against grads, without forming J
+		return hyperSolver.computeHypergradient(theta, grads);
+	}
 
-			gradMatrix.plusEquals(dataMat.times(temp).transpose());
-			i++;
+	/**
+	 * grads += sum over holdout rows i of holdoutCoef[i] x_i. With more than
+	 * one thread, every shard of rows sums into its own buffer and the
+	 * buffers are added in shard order, so the result does not depend on
+	 * scheduling.
+	 */
+	private void accumulateHoldout(final FeatureMatrix holdout, double[] grads)
+			throws Exception {
+		int numRows = holdout.numRows();
+		int numShards = Math.min(classifier.getNumThreads(), numRows
+				/ MIN_SHARD_ROWS);
+		if (numShards <= 1) {
+			for (int i = 0; i < numRows; i++)
+				if (holdoutCoef[i] != 0d)
+					holdout.addRow(i, holdoutCoef[i], grads, 0);
+			return;
 		}
-		for (i = 0; i < numWeights; i++)
-			if (Double.isNaN(gradMatrix.get(i, 0)))
-				LOGGER.log(Level.WARNING, String.valueOf(gradMatrix.get(i, 0)));
-		Matrix hyperJacMat = hyperLearner.computeJacobian(theta);
-		// System.out.println("dimensions of hyperparam jacobian: "
-		// + hyperJacMat.getRowDimension() + " x "
-		// + hyperJacMat.getColumnDimension());
-		return hyperJacMat.transpose().times(gradMatrix).getRowPackedCopy();
+		if (null == shardGrads || shardGrads.length != numShards
+				|| shardGrads[0].length != grads.length)
+			shardGrads = new double[numShards][grads.length];
+		ParallelUtil.runShards(numRows, numShards,
+				new ParallelUtil.ShardTask() {
+					@Override
+					public void run(int shard, int from, int to) {
+						double[] out = shardGrads[shard];
+						Arrays.fill(out, 0d);
+						for (int i = from; i < to; i++)
+							if (holdoutCoef[i] != 0d)
+								holdout.addRow(i, holdoutCoef[i], out, 0);
+					}
+				});
+		for (double[] out : shardGrads)
+			for (int j = 0; j < grads.length; j++)
+				grads[j] += out[j];
 	}
 
 	public ModelParams optimize2() throws Exception {
@@ -167,46 +170,59 @@ public class Optimizer {
 			b[1][p] = MetaConstants.MAX_POWER;
 		}
 
-		OptEng opt = new OptEng();
-		opt.setDebug(m_Debug);
-		// opt.setWeights(weights);
-		// opt.setClassLabels(Y);
+		// The quasi-Newton state is kept across the iterations below, which
+		// stop as soon as the bias is satisfied
+		QuasiNewtonSession session = new QuasiNewtonSession(
+				new QuasiNewtonSession.Objective() {
+					@Override
+					public double value(double[] x) throws Exception {
+						getNewState(x);
+						double kldiv = KLDivergenceCalculator.calculate(cState,
+								tState);
+						LOGGER.log(Level.FINEST, "kldiv=" + kldiv);
+						return kldiv;
+					}
+
+					@Override
+					public double[] gradient(double[] x) throws Exception {
+						LOGGER.log(Level.FINEST, "Computing Gradient...");
+						double[] grad = computeGradient(x);
+						LOGGER.log(Level.FINEST, "Gradient Computation Finished");
+						return grad;
+					}
+				}, theta, b[0], b[1]);
+		session.setDebug(m_Debug);
 
 		LOGGER.log(Level.FINE, "Initial confusion matrix : ");
 		data.getConfMatrix().display();
 		int iterCount = 0;
 		double minima = Double.MAX_VALUE;
 		do {
-			m_MaxIts = 1;
-			opt.setMaxIteration(m_MaxIts);
 			iterCount++;
 			if (LOGGER.getLevel() == Level.FINE)
 				LOGGER.log(Level.FINE,
 						"\nRunning hyperparameterLearning iteration count="
 								+ iterCount);
-			theta = opt.findArgmin(theta, b);
-			if (null == theta)
-				theta = opt.getVarbValues();
-			if (minima > opt.getMinFunction())
-				minima = opt.getMinFunction();
-			// else
-			// break;
+			boolean moved = session.step();
+			theta = session.getVariables();
+			if (minima > session.getMinFunction())
+				minima = session.getMinFunction();
 			if (LOGGER.getLevel() == Level.FINE) {
-				LOGGER.log(Level.FINE, "\nKL div = " + opt.getMinFunction());
+				LOGGER.log(Level.FINE, "\nKL div = " + session.getMinFunction());
 				LOGGER.log(Level.FINE, "\nKL div minima= " + minima);
 			}
-			// curIterations++;
-			// MetaChartBean chart = (MetaChartBean) BeanFinder
-			// .findBean(MetaConstants.BEAN_DIVERGENCE_CHART);
 
 			if (null != chart) {
-				// chart.addData(opt.getMinFunction());
 				chart.addModel(newData);
 				chart.addData(newData.getConfMatrix().getFp());
 			}
 			optim = optimized(theta);
 			if (LOGGER.getLevel() == Level.FINE)
 				LOGGER.log(Level.FINE, "\noptim = " + optim);
+			if (!moved) {
+				LOGGER.log(Level.FINE, "KL divergence cannot be reduced further");
+				break;
+			}
 		} while (!optim && iterCount < data.getMaxIterations());
 
 		if (LOGGER.getLevel() == Level.FINE)
@@ -246,6 +262,7 @@ public class Optimizer {
 		Instances holdout = WekaUtil.getInstances(holdoutFile);
 		Instances test = WekaUtil.getInstances(testFile);
 		mLog.buildClassifier(train);
+		PreprocessedData preprocessed = mLog.getPreprocessedData();
 		// double h[] = mLog.getHyperparameters();
 		// for(int i=0;i<h.length;i++)
 		// System.out.println(h[i]);
@@ -270,6 +287,7 @@ public class Optimizer {
 								for (int h7 = 0; h7 <= 300; h7 += stepSize) {
 									count++;
 									mLog = new ModifiedLogistic();
+									mLog.setPreprocessedData(preprocessed);
 
 									double theta[] = { h1, h2, h3, h4, h5, h6,
 											h7 };
@@ -334,8 +352,11 @@ public class Optimizer {
 			Instances validationSet) throws Exception {
 		List<InputPredictionInstance> predInst = new ArrayList<InputPredictionInstance>();
 		ConfusionMatrix confMatrix = new ConfusionMatrix();
-		double dist[][] = new double[validationSet.numInstances()][validationSet
-				.numClasses()];
+		int n = validationSet.numInstances();
+		double dist[][] = new double[n][];
+		double[] prob = new double[n];
+		double[] margins = new double[n];
+		m.scoreBatch(validationSet, prob, margins);
 
 		int countFN = 0;
 		int countFP = 0;
@@ -346,7 +367,9 @@ public class Optimizer {
 		int i = -1;
 
 		for (Instance instance : validationSet) {
-			dist[++i] = m.distributionForInstance(instance);
+			++i;
+			dist[i] = new double[] {
+					ModifiedLogistic.negativeProbability(margins[i]), prob[i] };
 
 			pred = dist[i][0] >= dist[i][1] ? 0 : 1;
 			// pred = dist[i][1] > 0 ? 1 : 0;
@@ -470,8 +493,8 @@ public class Optimizer {
 		return blnOptim;
 	}
 
-	private void displayMat(Matrix mat) {
-		double[] vals = mat.getRowPackedCopy();
+	private void displayMat(DenseMatrix mat) {
+		double[] vals = mat.getData();
 		for (int i = 0; i < vals.length; i++)
 			System.out.print(vals[i] + ", ");
 	}
@@ -479,4 +502,12 @@ public class Optimizer {
 	public void setDebug(boolean debug) {
 		m_Debug = debug;
 	}
+
+	/**
+	 * Sets how the hypergradient is computed, instead of choosing by the
+	 * number of weights against {@link MetaConstants#DENSE_HYPERGRADIENT_LIMIT}
+	 */
+	public void setHypergradientSolver(HypergradientSolver hyperSolver) {
+		this.hyperSolver = hyperSolver;
+	}
 }
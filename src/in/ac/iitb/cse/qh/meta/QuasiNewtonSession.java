@@ -0,0 +1,306 @@
+package in.ac.iitb.cse.qh.meta;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Minimises a function within box constraints by projected limited-memory
+ * BFGS, one iteration per call to {@link #step()}. The curvature pairs and
+ * the current point stay in the session between calls, so the caller can
+ * check its own stopping rule after every iteration without the quasi-Newton
+ * model being rebuilt from the gradient alone, as a fresh
+ * weka.core.Optimization run would.
+ *
+ * Variables at a bound whose gradient points out of the box are held fixed
+ * for the iteration. The step is cut back along the projected path until it
+ * gives sufficient decrease; once the model has curvature the unit step is
+ * usually accepted, so an iteration typically costs one function and one
+ * gradient evaluation.
+ */
+public class QuasiNewtonSession {
+	private static final Logger LOGGER = Logger
+			.getLogger(QuasiNewtonSession.class.getName());
+
+	/** Sufficient decrease constant of the Armijo condition */
+	private static final double ARMIJO = 1e-4;
+
+	/** Step cuts tried before an iteration gives up */
+	private static final int MAX_BACKTRACKS = 20;
+
+	/**
+	 * The function minimised
+	 */
+	public interface Objective {
+		double value(double[] x) throws Exception;
+
+		/**
+		 * Gradient at x, which is always the point of the last call to
+		 * {@link #value(double[])}
+		 */
+		double[] gradient(double[] x) throws Exception;
+	}
+
+	private final Objective objective;
+	private final double[] lower;
+	private final double[] upper;
+
+	/** Current point, function value and gradient */
+	private double[] x;
+	private double f;
+	private double[] g;
+
+	/** The last numPairs curvature pairs, newest at index newest */
+	private int memory = 10;
+	private double[][] s;
+	private double[][] y;
+	private double[] rho;
+	private int numPairs;
+	private int newest = -1;
+
+	private double tolerance = 1e-8;
+	private int numIterations;
+	private int numEvaluations;
+	private boolean debug;
+
+	/**
+	 * @param x0
+	 *            the starting point, projected onto the box
+	 * @param lower
+	 *            lower bound of every variable
+	 * @param upper
+	 *            upper bound of every variable
+	 */
+	public QuasiNewtonSession(Objective objective, double[] x0,
+			double[] lower, double[] upper) {
+		this.objective = objective;
+		this.lower = lower;
+		this.upper = upper;
+		x = project(x0, new double[x0.length], 0d, new double[x0.length]);
+	}
+
+	/**
+	 * Runs one iteration
+	 *
+	 * @return whether the point moved; false once the projected gradient
+	 *         is below the tolerance or no step gives sufficient decrease
+	 */
+	public boolean step() throws Exception {
+		if (null == g) {
+			f = evaluate(x);
+			g = objective.gradient(x);
+		}
+		if (projectedGradientNorm() <= tolerance)
+			return false;
+
+		double[] d = direction();
+		double gd = dot(g, d);
+		if (!(gd < 0)) {
+			LOGGER.log(Level.FINE, "Not a descent direction, resetting");
+			numPairs = 0;
+			d = direction();
+			gd = dot(g, d);
+			if (!(gd < 0))
+				return false;
+		}
+
+		// Without curvature the step length is unknown; take one of unit
+		// length
+		double alpha = numPairs == 0 ? Math.min(1d, 1d / Math.sqrt(dot(d, d)))
+				: 1d;
+		boolean evaluated = false;
+		for (int k = 0; k < MAX_BACKTRACKS; k++) {
+			double[] trial = project(x, d, alpha, new double[x.length]);
+			double decrease = 0d;
+			boolean moved = false;
+			for (int i = 0; i < x.length; i++) {
+				decrease += g[i] * (trial[i] - x[i]);
+				moved |= trial[i] != x[i];
+			}
+			if (!moved)
+				break;
+			double value = evaluate(trial);
+			evaluated = true;
+			if (value <= f + ARMIJO * decrease) {
+				double[] gradient = objective.gradient(trial);
+				update(trial, gradient);
+				if (debug || LOGGER.isLoggable(Level.FINE))
+					LOGGER.log(debug ? Level.INFO : Level.FINE, "Iteration "
+							+ numIterations + ": f = " + value + ", step "
+							+ alpha + ", " + numEvaluations + " evaluations");
+				x = trial;
+				f = value;
+				g = gradient;
+				numIterations++;
+				return true;
+			}
+			// Minimiser of the quadratic through f, the slope and value,
+			// kept within [0.1, 0.5] of the rejected step
+			double cut = -decrease / (2 * (value - f - decrease));
+			alpha *= Math.max(0.1, Math.min(0.5, cut));
+		}
+		LOGGER.log(Level.FINE, "Line search failed, staying at the last point");
+		// Leave the objective evaluated at the current point again
+		if (evaluated)
+			evaluate(x);
+		numPairs = 0;
+		return false;
+	}
+
+	private double evaluate(double[] point) throws Exception {
+		numEvaluations++;
+		return objective.value(point);
+	}
+
+	/**
+	 * Whether variable i is at a bound that its gradient pushes against
+	 */
+	private boolean isFixed(int i) {
+		return (x[i] <= lower[i] && g[i] > 0) || (x[i] >= upper[i] && g[i] < 0);
+	}
+
+	private double projectedGradientNorm() {
+		double max = 0d;
+		for (int i = 0; i < x.length; i++)
+			if (!isFixed(i))
+				max = Math.max(max, Math.abs(g[i]));
+		return max;
+	}
+
+	/**
+	 * -H g on the free variables by the two-loop recursion, 0 on the fixed
+	 * ones
+	 */
+	private double[] direction() {
+		int n = x.length;
+		double[] q = new double[n];
+		for (int i = 0; i < n; i++)
+			q[i] = isFixed(i) ? 0d : g[i];
+		double[] a = new double[numPairs];
+		// Newest pair first
+		for (int k = 0, r = newest; k < numPairs; k++, r = (r + memory - 1)
+				% memory) {
+			a[k] = rho[r] * dot(s[r], q);
+			axpy(-a[k], y[r], q);
+		}
+		if (numPairs > 0) {
+			double gamma = 1d / (rho[newest] * dot(y[newest], y[newest]));
+			for (int i = 0; i < n; i++)
+				q[i] *= gamma;
+		}
+		// Oldest pair first
+		int p = (newest + memory - numPairs + 1) % memory;
+		for (int k = numPairs - 1; k >= 0; k--, p = (p + 1) % memory) {
+			double b = rho[p] * dot(y[p], q);
+			axpy(a[k] - b, s[p], q);
+		}
+		for (int i = 0; i < n; i++)
+			q[i] = isFixed(i) ? 0d : -q[i];
+		return q;
+	}
+
+	/**
+	 * Stores the pair of the step to next, unless it has no positive
+	 * curvature
+	 */
+	private void update(double[] next, double[] nextGradient) {
+		int n = x.length;
+		if (null == s || s.length != memory) {
+			s = new double[memory][];
+			y = new double[memory][];
+			rho = new double[memory];
+			numPairs = 0;
+		}
+		double[] sk = new double[n];
+		double[] yk = new double[n];
+		for (int i = 0; i < n; i++) {
+			sk[i] = next[i] - x[i];
+			yk[i] = nextGradient[i] - g[i];
+		}
+		double sy = dot(sk, yk);
+		if (!(sy > 1e-10 * Math.sqrt(dot(sk, sk) * dot(yk, yk)))) {
+			LOGGER.log(Level.FINE, "Skipping update without curvature");
+			return;
+		}
+		newest = (newest + 1) % memory;
+		s[newest] = sk;
+		y[newest] = yk;
+		rho[newest] = 1d / sy;
+		numPairs = Math.min(numPairs + 1, memory);
+	}
+
+	/**
+	 * out = the projection of from + alpha d onto the box
+	 */
+	private double[] project(double[] from, double[] d, double alpha,
+			double[] out) {
+		for (int i = 0; i < from.length; i++)
+			out[i] = Math.min(upper[i],
+					Math.max(lower[i], from[i] + alpha * d[i]));
+		return out;
+	}
+
+	private static double dot(double[] a, double[] b) {
+		double sum = 0d;
+		for (int i = 0; i < a.length; i++)
+			sum += a[i] * b[i];
+		return sum;
+	}
+
+	private static void axpy(double alpha, double[] x, double[] y) {
+		for (int i = 0; i < x.length; i++)
+			y[i] += alpha * x[i];
+	}
+
+	/**
+	 * The current point
+	 */
+	public double[] getVariables() {
+		return x.clone();
+	}
+
+	/**
+	 * Function value at the current point
+	 */
+	public double getMinFunction() {
+		return f;
+	}
+
+	public int getNumIterations() {
+		return numIterations;
+	}
+
+	/**
+	 * Number of function evaluations so far
+	 */
+	public int getNumEvaluations() {
+		return numEvaluations;
+	}
+
+	/**
+	 * Number of curvature pairs kept
+	 */
+	public void setMemory(int memory) {
+		this.memory = Math.max(1, memory);
+		numPairs = 0;
+		newest = -1;
+	}
+
+	public int getMemory() {
+		return memory;
+	}
+
+	/**
+	 * Projected gradient norm below which the session has converged
+	 */
+	public void setTolerance(double tolerance) {
+		this.tolerance = tolerance;
+	}
+
+	public double getTolerance() {
+		return tolerance;
+	}
+
+	public void setDebug(boolean debug) {
+		this.debug = debug;
+	}
+}
@@ -1,13 +1,12 @@
 package in.ac.iitb.cse.qh.meta;
 
 import in.ac.iitb.cse.qh.classifiers.ModifiedLogistic;
+import in.ac.iitb.cse.qh.linalg.DenseMatrix;
 
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
 
-import Jama.Matrix;
-
 public class finalParamGenerator {
 
 	/**
@@ -36,11 +35,8 @@ public class finalParamGenerator {
 	}
 
 	private double[] calculateMetamodelWeights() {
-		Matrix modelWeightsVector = new Matrix(modelWeights, 1);
-		Matrix featureWeightsPerModelMatrix = new Matrix(featureWeightsPerModel);
-		Matrix metaModelWeightsVector = modelWeightsVector
-				.times(featureWeightsPerModelMatrix);
-		return metaModelWeightsVector.getColumnPackedCopy();
+		return new DenseMatrix(featureWeightsPerModel)
+				.transposeTimes(modelWeights);
 	}
 
 	private static double[] parseWeights(String line) {
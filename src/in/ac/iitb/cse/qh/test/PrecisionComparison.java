@@ -0,0 +1,119 @@
+package in.ac.iitb.cse.qh.test;
+
+import in.ac.iitb.cse.qh.classifiers.DesignMatrix;
+import in.ac.iitb.cse.qh.classifiers.FeatureMatrix;
+import in.ac.iitb.cse.qh.classifiers.FloatDesignMatrix;
+import in.ac.iitb.cse.qh.classifiers.ModifiedLogistic;
+import in.ac.iitb.cse.qh.util.WekaUtil;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Compares the single precision mode of ModifiedLogistic with the double
+ * path: trains both on the same data and reports the differences in the
+ * weights, the log-likelihood and the holdout predictions, with timings.
+ *
+ * Usage: PrecisionComparison train.arff holdout.arff
+ */
+public class PrecisionComparison {
+
+	public static void main(String[] args) throws Exception {
+		Instances train = WekaUtil.getInstances(args[0]);
+		Instances holdout = WekaUtil.getInstances(args[1]);
+
+		ModifiedLogistic full = new ModifiedLogistic();
+		ModifiedLogistic single = new ModifiedLogistic();
+		single.setFloatPrecision(true);
+		long fullTime = build(full, train);
+		long singleTime = build(single, train);
+
+		System.out.println("Training time (ms): double " + fullTime
+				+ ", float " + singleTime);
+		System.out.println("Log-likelihood: double " + full.getLogLikelihood()
+				+ ", float " + single.getLogLikelihood() + ", relative diff "
+				+ relativeDiff(full.getLogLikelihood(),
+						single.getLogLikelihood()));
+		double[] w = full.getWparameters(), ws = single.getWparameters();
+		double maxDiff = 0d, maxRel = 0d;
+		for (int i = 0; i < w.length; i++) {
+			maxDiff = Math.max(maxDiff, Math.abs(w[i] - ws[i]));
+			maxRel = Math.max(maxRel, relativeDiff(w[i], ws[i]));
+		}
+		System.out.println("Weights: max abs diff " + maxDiff
+				+ ", max relative diff " + maxRel);
+
+		DesignMatrix rows = new DesignMatrix(holdout.numInstances(),
+				train.numAttributes());
+		FloatDesignMatrix floatRows = new FloatDesignMatrix(
+				holdout.numInstances(), train.numAttributes());
+		double[] row = new double[train.numAttributes()];
+		for (int i = 0; i < holdout.numInstances(); i++) {
+			Instance inst = holdout.instance(i);
+			row[0] = 1;
+			for (int k = 0, j = 1; k < inst.numAttributes(); k++)
+				if (k != holdout.classIndex())
+					row[j++] = inst.value(k);
+			rows.setRow(i, row);
+			floatRows.setRow(i, row);
+		}
+
+		long start = System.currentTimeMillis();
+		double[][] p = score(full, rows);
+		long fullScore = System.currentTimeMillis() - start;
+		start = System.currentTimeMillis();
+		double[][] ps = score(single, floatRows);
+		long singleScore = System.currentTimeMillis() - start;
+
+		double maxP = 0d, sumP = 0d;
+		int disagree = 0, correct = 0, correctSingle = 0;
+		for (int i = 0; i < p.length; i++) {
+			double diff = Math.abs(p[i][0] - ps[i][0]);
+			maxP = Math.max(maxP, diff);
+			sumP += diff;
+			int label = argmax(p[i]), labelSingle = argmax(ps[i]);
+			if (label != labelSingle)
+				disagree++;
+			int actual = (int) holdout.instance(i).classValue();
+			if (label == actual)
+				correct++;
+			if (labelSingle == actual)
+				correctSingle++;
+		}
+		System.out.println("Scoring time (ms): double " + fullScore
+				+ ", float " + singleScore);
+		System.out.println("Holdout probabilities: max abs diff " + maxP
+				+ ", mean abs diff " + (p.length > 0 ? sumP / p.length : 0));
+		System.out.println("Holdout labels: " + disagree + " of " + p.length
+				+ " differ; accuracy double " + correct + ", float "
+				+ correctSingle);
+	}
+
+	private static long build(ModifiedLogistic classifier, Instances train)
+			throws Exception {
+		classifier.setMaxIts(-1);
+		long start = System.currentTimeMillis();
+		classifier.buildClassifier(train);
+		return System.currentTimeMillis() - start;
+	}
+
+	private static double[][] score(ModifiedLogistic classifier,
+			FeatureMatrix rows) {
+		double[][] p = new double[rows.numRows()][];
+		for (int i = 0; i < p.length; i++)
+			p[i] = classifier.distributionForRow(rows, i);
+		return p;
+	}
+
+	private static double relativeDiff(double a, double b) {
+		double scale = Math.max(Math.abs(a), Math.abs(b));
+		return scale == 0 ? 0 : Math.abs(a - b) / scale;
+	}
+
+	private static int argmax(double[] p) {
+		int best = 0;
+		for (int i = 1; i < p.length; i++)
+			if (p[i] > p[best])
+				best = i;
+		return best;
+	}
+}
@@ -45,6 +45,26 @@ public class MetaConstants {
 	public static final double FREEZE_VALUE = 0.0; //0.02
 	public static boolean FREEZE_HARDCODE = false;
 
+	// Store training data of new classifiers in single precision
+	public static boolean FLOAT_PRECISION = false;
+
+	// Use the Java Vector API kernels when the module is available
+	public static boolean VECTOR_API = true;
+
+	// L1 penalty of new classifiers; 0 fits the ridge penalty alone
+	public static double L1_PENALTY = 0d;
+
+	// Hash buckets of new classifiers' attributes; 0 trains on the attributes
+	public static int HASH_BUCKETS = 0;
+
+	// Widest model whose hypergradient uses the dense Hessian; wider ones
+	// are solved matrix-free
+	public static int DENSE_HYPERGRADIENT_LIMIT = 4000;
+
+	// Run dense linear algebra on Jama, the reference, instead of the
+	// blocked backend
+	public static boolean JAMA_LINEAR_ALGEBRA = false;
+
 	public static void configure() {
 		UPLOAD_PATH = ROOT_PATH + "/meta/";
 		IN_FILE_PATH = ROOT_PATH + "/lr.dat";
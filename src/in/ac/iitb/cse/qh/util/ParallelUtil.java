@@ -0,0 +1,77 @@
+package in.ac.iitb.cse.qh.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Runs a range of work split into a fixed number of shards on a shared
+ * fork/join pool. The split only depends on the size of the range and the
+ * number of shards, so callers that merge per-shard results in shard order
+ * get the same answer on every run.
+ */
+public class ParallelUtil {
+
+	private static ForkJoinPool pool;
+
+	/**
+	 * A piece of work over the index range [from, to)
+	 */
+	public interface ShardTask {
+		void run(int shard, int from, int to) throws Exception;
+	}
+
+	public static int getDefaultThreads() {
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	private static synchronized ForkJoinPool getPool() {
+		if (null == pool)
+			pool = new ForkJoinPool(getDefaultThreads());
+		return pool;
+	}
+
+	/**
+	 * Start of shard s when n items are split into numShards shards. Shard s
+	 * covers [shardStart(n, numShards, s), shardStart(n, numShards, s + 1)).
+	 */
+	public static int shardStart(int n, int numShards, int s) {
+		return (int) ((long) n * s / numShards);
+	}
+
+	/**
+	 * Runs task over [0, n) split into numShards contiguous shards and waits
+	 * for all of them. A single shard runs in the calling thread.
+	 */
+	public static void runShards(final int n, final int numShards,
+			final ShardTask task) throws Exception {
+		if (numShards <= 1) {
+			task.run(0, 0, n);
+			return;
+		}
+		List<Callable<Void>> shards = new ArrayList<Callable<Void>>(numShards);
+		for (int s = 0; s < numShards; s++) {
+			final int shard = s;
+			shards.add(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					task.run(shard, shardStart(n, numShards, shard),
+							shardStart(n, numShards, shard + 1));
+					return null;
+				}
+			});
+		}
+		for (Future<Void> f : getPool().invokeAll(shards)) {
+			try {
+				f.get();
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof Exception)
+					throw (Exception) e.getCause();
+				throw e;
+			}
+		}
+	}
+}
@@ -0,0 +1,57 @@
+package in.ac.iitb.cse.qh.util;
+
+/**
+ * Plain loop implementation of {@link VectorKernels}
+ */
+public class ScalarKernels implements VectorKernels.Kernels {
+
+	@Override
+	public double dot(double[] a, int aOffset, double[] b, int bOffset, int n) {
+		double sum = 0d;
+		for (int j = 0; j < n; j++)
+			sum += a[aOffset + j] * b[bOffset + j];
+		return sum;
+	}
+
+	@Override
+	public double dot(float[] a, int aOffset, double[] b, int bOffset, int n) {
+		double sum = 0d;
+		for (int j = 0; j < n; j++)
+			sum += a[aOffset + j] * b[bOffset + j];
+		return sum;
+	}
+
+	@Override
+	public void axpy(double alpha, double[] x, int xOffset, double[] y,
+			int yOffset, int n) {
+		for (int j = 0; j < n; j++)
+			y[yOffset + j] += alpha * x[xOffset + j];
+	}
+
+	@Override
+	public void axpy(double alpha, float[] x, int xOffset, double[] y,
+			int yOffset, int n) {
+		for (int j = 0; j < n; j++)
+			y[yOffset + j] += alpha * x[xOffset + j];
+	}
+
+	@Override
+	public void sigmoid(double[] z, double[] out, int n) {
+		for (int i = 0; i < n; i++)
+			out[i] = 1 / (1 + Math.exp(-z[i]));
+	}
+
+	@Override
+	public void softplus(double[] z, double[] out, int n) {
+		for (int i = 0; i < n; i++) {
+			double v = z[i];
+			out[i] = v > 0 ? v + Math.log1p(Math.exp(-v)) : Math.log1p(Math
+					.exp(v));
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "scalar kernels";
+	}
+}
@@ -0,0 +1,109 @@
+package in.ac.iitb.cse.qh.util;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The inner loops that dominate training and scoring: dot products, rank-one
+ * (axpy) updates and batch sigmoid and softplus. They run on SimdKernels,
+ * which uses the incubating Java Vector API, when it has been compiled from
+ * the src-vector source root, the jdk.incubator.vector module is present
+ * (java --add-modules jdk.incubator.vector) and the CPU has vectors of at
+ * least two doubles; otherwise on {@link ScalarKernels}. Vectorised sums are
+ * added up in a different order, so results may differ from the scalar ones
+ * in the last bits, but do not change from run to run.
+ */
+public class VectorKernels {
+	private static final Logger LOGGER = Logger.getLogger(VectorKernels.class
+			.getName());
+
+	/**
+	 * The operations; see the static methods of VectorKernels
+	 */
+	public interface Kernels {
+		double dot(double[] a, int aOffset, double[] b, int bOffset, int n);
+
+		double dot(float[] a, int aOffset, double[] b, int bOffset, int n);
+
+		void axpy(double alpha, double[] x, int xOffset, double[] y,
+				int yOffset, int n);
+
+		void axpy(double alpha, float[] x, int xOffset, double[] y,
+				int yOffset, int n);
+
+		void sigmoid(double[] z, double[] out, int n);
+
+		void softplus(double[] z, double[] out, int n);
+	}
+
+	private static final Kernels KERNELS = load();
+
+	private static Kernels load() {
+		if (MetaConstants.VECTOR_API) {
+			try {
+				Class<?> c = Class.forName("in.ac.iitb.cse.qh.util.SimdKernels");
+				if (Boolean.TRUE.equals(c.getMethod("isSupported").invoke(null))) {
+					Kernels kernels = (Kernels) c.getDeclaredConstructor()
+							.newInstance();
+					LOGGER.log(Level.FINE, "Using " + kernels);
+					return kernels;
+				}
+				LOGGER.log(Level.FINE, "No vector hardware for the Vector API");
+			} catch (ReflectiveOperationException e) {
+				// Class not compiled (it is in src-vector) or not accessible
+				LOGGER.log(Level.FINE, "Vector API kernels unavailable: " + e);
+			} catch (LinkageError e) {
+				// Compiled, but run without the jdk.incubator.vector module
+				LOGGER.log(Level.FINE, "Vector API kernels unavailable: " + e);
+			}
+		}
+		return new ScalarKernels();
+	}
+
+	/**
+	 * Whether the Vector API kernels are in use
+	 */
+	public static boolean isVectorized() {
+		return !(KERNELS instanceof ScalarKernels);
+	}
+
+	/**
+	 * Sum of a[aOffset + j] * b[bOffset + j] over j < n
+	 */
+	public static double dot(double[] a, int aOffset, double[] b,
+			int bOffset, int n) {
+		return KERNELS.dot(a, aOffset, b, bOffset, n);
+	}
+
+	public static double dot(float[] a, int aOffset, double[] b, int bOffset,
+			int n) {
+		return KERNELS.dot(a, aOffset, b, bOffset, n);
+	}
+
+	/**
+	 * y[yOffset + j] += alpha * x[xOffset + j] for j < n
+	 */
+	public static void axpy(double alpha, double[] x, int xOffset,
+			double[] y, int yOffset, int n) {
+		KERNELS.axpy(alpha, x, xOffset, y, yOffset, n);
+	}
+
+	public static void axpy(double alpha, float[] x, int xOffset, double[] y,
+			int yOffset, int n) {
+		KERNELS.axpy(alpha, x, xOffset, y, yOffset, n);
+	}
+
+	/**
+	 * out[i] = 1 / (1 + exp(-z[i])) for i < n; out may be z
+	 */
+	public static void sigmoid(double[] z, double[] out, int n) {
+		KERNELS.sigmoid(z, out, n);
+	}
+
+	/**
+	 * out[i] = log(1 + exp(z[i])) for i < n, without overflow; out may be z
+	 */
+	public static void softplus(double[] z, double[] out, int n) {
+		KERNELS.softplus(z, out, n);
+	}
+}
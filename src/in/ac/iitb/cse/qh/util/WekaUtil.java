@@ -1,5 +1,7 @@
 package in.ac.iitb.cse.qh.util;
 
+import in.ac.iitb.cse.qh.classifiers.ModifiedLogistic;
+
 import weka.classifiers.functions.Logistic;
 import weka.core.Instance;
 import weka.core.Instances;
@@ -46,6 +48,18 @@ public class WekaUtil {
 		int instIndex = 0;
 		int pred = 0;
 		int[][] conf = new int[][] { { 0, 0 }, { 0, 0 } };
+		if (classifier instanceof ModifiedLogistic) {
+			int n = instances.numInstances();
+			double[] margins = new double[n];
+			((ModifiedLogistic) classifier).scoreBatch(instances, prob, margins);
+			for (int i = 0; i < n; i++) {
+				double negative = ModifiedLogistic
+						.negativeProbability(margins[i]);
+				pred = negative >= prob[i] ? 0 : 1;
+				conf[(int) instances.instance(i).classValue()][pred]++;
+			}
+			return conf;
+		}
 		for (Instance instance : instances) {
 			if (classifier == null)
 				System.out.println("Classifier is NULL");